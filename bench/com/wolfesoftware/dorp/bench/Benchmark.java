@@ -0,0 +1,236 @@
+package com.wolfesoftware.dorp.bench;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.wolfesoftware.dorp.CodeGenerator;
+import com.wolfesoftware.dorp.Main;
+import com.wolfesoftware.dorp.Parser;
+import com.wolfesoftware.dorp.SemanticAnalyzer;
+import com.wolfesoftware.dorp.SemanticAnalyzer.CompilationUnit;
+import com.wolfesoftware.dorp.SyntaxTree;
+import com.wolfesoftware.dorp.TokenBuffer;
+import com.wolfesoftware.dorp.Tokenizer;
+
+/**
+ * times each compiler phase in isolation and the whole pipeline end to end.
+ * each phase gets its input precomputed by the phases before it, so only the phase itself is measured.
+ * <p>
+ * usage: Benchmark [--shape name]... [--phase name]... [--warmup-ms n] [--measure-ms n] [source.dorp]...
+ */
+public class Benchmark
+{
+    private static class Fixture
+    {
+        public final String name;
+        public final String contents;
+        public TokenBuffer tokens;
+        public SyntaxTree syntaxTree;
+        public CompilationUnit compilationUnit;
+        /** the first phase that could not handle this input, if any */
+        public String failure = null;
+        public Fixture(String name, String contents)
+        {
+            this.name = name;
+            this.contents = contents;
+            try {
+                tokens = new Tokenizer(contents).tokenize();
+                syntaxTree = new Parser(tokens).parse();
+                compilationUnit = new SemanticAnalyzer(syntaxTree).analyze();
+                new CodeGenerator(compilationUnit).generate();
+            } catch (RuntimeException e) {
+                failure = describe(e);
+            }
+        }
+    }
+
+    private static abstract class Phase
+    {
+        public final String name;
+        public Phase(String name)
+        {
+            this.name = name;
+        }
+        /** @return <code>false</code> if an earlier phase failed to produce this phase's input */
+        public abstract boolean isSupported(Fixture fixture);
+        public abstract Object run(Fixture fixture);
+    }
+
+    private static final List<Phase> phases = Arrays.asList( //
+            new Phase("tokenize") {
+                @Override
+                public boolean isSupported(Fixture fixture)
+                {
+                    return true;
+                }
+                @Override
+                public Object run(Fixture fixture)
+                {
+                    return new Tokenizer(fixture.contents).tokenize();
+                }
+            }, //
+            new Phase("parse") {
+                @Override
+                public boolean isSupported(Fixture fixture)
+                {
+                    return fixture.tokens != null;
+                }
+                @Override
+                public Object run(Fixture fixture)
+                {
+                    return new Parser(fixture.tokens).parse();
+                }
+            }, //
+            new Phase("parse-memo") {
+                @Override
+                public boolean isSupported(Fixture fixture)
+                {
+                    return fixture.tokens != null;
+                }
+                @Override
+                public Object run(Fixture fixture)
+                {
+                    return new Parser(fixture.tokens, Parser.MEMO_UNBOUNDED).parse();
+                }
+            }, //
+            new Phase("analyze") {
+                @Override
+                public boolean isSupported(Fixture fixture)
+                {
+                    return fixture.syntaxTree != null;
+                }
+                @Override
+                public Object run(Fixture fixture)
+                {
+                    return new SemanticAnalyzer(fixture.syntaxTree).analyze();
+                }
+            }, //
+            new Phase("generate") {
+                @Override
+                public boolean isSupported(Fixture fixture)
+                {
+                    return fixture.compilationUnit != null;
+                }
+                @Override
+                public Object run(Fixture fixture)
+                {
+                    return new CodeGenerator(fixture.compilationUnit).generate();
+                }
+            }, //
+            new Phase("compile") {
+                @Override
+                public boolean isSupported(Fixture fixture)
+                {
+                    return fixture.failure == null;
+                }
+                @Override
+                public Object run(Fixture fixture)
+                {
+                    TokenBuffer tokens = new Tokenizer(fixture.contents).tokenize();
+                    SyntaxTree syntaxTree = new Parser(tokens).parse();
+                    CompilationUnit compilationUnit = new SemanticAnalyzer(syntaxTree).analyze();
+                    return new CodeGenerator(compilationUnit).generate();
+                }
+            });
+
+    /** keeps the jit from optimizing away the work */
+    public static volatile Object blackhole;
+
+    private static final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws IOException
+    {
+        ArrayList<String> shapeNames = new ArrayList<>();
+        ArrayList<String> phaseNames = new ArrayList<>();
+        ArrayList<String> sourcePaths = new ArrayList<>();
+        long warmupMillis = 500;
+        long measureMillis = 1000;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-") && !args[i].equals("-")) {
+                switch (args[i]) {
+                    case "--shape":
+                        i++;
+                        shapeNames.add(args[i]);
+                        break;
+                    case "--phase":
+                        i++;
+                        phaseNames.add(args[i]);
+                        break;
+                    case "--warmup-ms":
+                        i++;
+                        warmupMillis = Long.parseLong(args[i]);
+                        break;
+                    case "--measure-ms":
+                        i++;
+                        measureMillis = Long.parseLong(args[i]);
+                        break;
+                    default:
+                        throw new RuntimeException("unknown option: " + args[i]);
+                }
+            } else {
+                sourcePaths.add(args[i]);
+            }
+        }
+
+        ArrayList<Fixture> fixtures = new ArrayList<>();
+        if (shapeNames.isEmpty() && sourcePaths.isEmpty()) {
+            for (CorpusGenerator.Shape shape : CorpusGenerator.standardShapes)
+                shapeNames.add(shape.name);
+        }
+        for (String shapeName : shapeNames)
+            fixtures.add(new Fixture(shapeName, CorpusGenerator.generate(CorpusGenerator.findShape(shapeName))));
+        for (String sourcePath : sourcePaths)
+            fixtures.add(new Fixture(sourcePath, Main.readPath(sourcePath)));
+
+        ArrayList<Phase> selectedPhases = new ArrayList<>();
+        for (Phase phase : phases)
+            if (phaseNames.isEmpty() || phaseNames.contains(phase.name))
+                selectedPhases.add(phase);
+
+        System.out.println(String.format("%-20s %-10s %10s %12s %12s", "input", "phase", "ops", "us/op", "KiB/op"));
+        for (Fixture fixture : fixtures) {
+            for (Phase phase : selectedPhases) {
+                if (!phase.isSupported(fixture)) {
+                    System.out.println(String.format("%-20s %-10s unsupported: %s", fixture.name, phase.name, fixture.failure));
+                    continue;
+                }
+                String line;
+                try {
+                    measure(phase, fixture, warmupMillis * 1000000);
+                    line = measure(phase, fixture, measureMillis * 1000000);
+                } catch (RuntimeException e) {
+                    line = "unsupported: " + describe(e);
+                }
+                System.out.println(String.format("%-20s %-10s %s", fixture.name, phase.name, line));
+            }
+        }
+    }
+
+    private static String measure(Phase phase, Fixture fixture, long targetNanos)
+    {
+        long threadId = Thread.currentThread().getId();
+        long operations = 0;
+        long startBytes = threadBean.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        long elapsedNanos;
+        do {
+            blackhole = phase.run(fixture);
+            operations++;
+            elapsedNanos = System.nanoTime() - startNanos;
+        } while (elapsedNanos < targetNanos || operations < 5);
+        long allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - startBytes;
+        double microsPerOperation = elapsedNanos / 1000.0 / operations;
+        double kibPerOperation = allocatedBytes / 1024.0 / operations;
+        return String.format("%10d %12.2f %12.2f", operations, microsPerOperation, kibPerOperation);
+    }
+
+    private static String describe(RuntimeException e)
+    {
+        StackTraceElement[] stackTrace = e.getStackTrace();
+        String where = stackTrace.length > 0 ? " at " + stackTrace[0].getClassName().replaceAll(".*\\.", "") + "." + stackTrace[0].getMethodName() : "";
+        return e.getClass().getSimpleName() + where;
+    }
+}
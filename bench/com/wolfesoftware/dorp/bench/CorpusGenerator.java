@@ -0,0 +1,124 @@
+package com.wolfesoftware.dorp.bench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * generates synthetic .dorp programs that grow along independent axes.
+ * run the main method to dump the corpus into a directory.
+ */
+public class CorpusGenerator
+{
+    public static class Shape
+    {
+        public final String name;
+        /** number of plain var/if/print statement groups at the top level */
+        public final int statements;
+        /** how many "do { ... }" blocks are nested inside each other */
+        public final int depth;
+        /** number of "def" templates */
+        public final int templates;
+        /** how many times each template gets called */
+        public final int callsPerTemplate;
+        public Shape(String name, int statements, int depth, int templates, int callsPerTemplate)
+        {
+            this.name = name;
+            this.statements = statements;
+            this.depth = depth;
+            this.templates = templates;
+            this.callsPerTemplate = callsPerTemplate;
+        }
+        @Override
+        public String toString()
+        {
+            return name;
+        }
+    }
+
+    /** each axis grows while the others stay small */
+    public static final List<Shape> standardShapes = Arrays.asList( //
+            new Shape("size-100", 100, 1, 1, 1), //
+            new Shape("size-1000", 1000, 1, 1, 1), //
+            new Shape("size-10000", 10000, 1, 1, 1), //
+            new Shape("depth-8", 1, 8, 1, 1), //
+            new Shape("depth-32", 1, 32, 1, 1), //
+            new Shape("depth-128", 1, 128, 1, 1), //
+            new Shape("templates-10", 1, 1, 10, 1), //
+            new Shape("templates-100", 1, 1, 100, 1), //
+            new Shape("templates-1000", 1, 1, 1000, 1), //
+            new Shape("calls-10", 1, 1, 1, 10), //
+            new Shape("calls-100", 1, 1, 1, 100), //
+            new Shape("calls-1000", 1, 1, 1, 1000));
+
+    public static Shape findShape(String name)
+    {
+        for (Shape shape : standardShapes)
+            if (shape.name.equals(name))
+                return shape;
+        throw new RuntimeException("unknown shape: " + name);
+    }
+
+    public static String generate(Shape shape)
+    {
+        StringBuilder result = new StringBuilder();
+        result.append("# generated corpus: ").append(shape.name).append("\n");
+
+        for (int i = 0; i < shape.templates; i++) {
+            result.append("def template").append(i).append("(x) = {\n");
+            result.append("  print(x);\n");
+            result.append("  x\n");
+            result.append("};\n");
+        }
+        for (int i = 0; i < shape.templates; i++)
+            for (int j = 0; j < shape.callsPerTemplate; j++)
+                result.append("print(template").append(i).append("(").append(j).append("));\n");
+
+        for (int i = 0; i < shape.statements; i++) {
+            // a little bit of everything the tokenizer has to deal with
+            result.append("var v").append(i).append(" = if true then ").append(i).append(" else 0; # comment\n");
+            result.append("v").append(i).append(" = ").append(i).append(";\n");
+            result.append("print(v").append(i).append(");\n");
+        }
+
+        for (int i = 0; i < shape.depth; i++) {
+            indent(result, i);
+            result.append("do {\n");
+        }
+        indent(result, shape.depth);
+        result.append("print(").append(shape.depth).append(")\n");
+        for (int i = shape.depth - 1; i >= 0; i--) {
+            indent(result, i);
+            result.append("}");
+            result.append(i == 0 ? ";\n" : "\n");
+        }
+        return result.toString();
+    }
+    private static void indent(StringBuilder result, int depth)
+    {
+        for (int i = 0; i < depth; i++)
+            result.append("  ");
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 1)
+            throw new RuntimeException("usage: CorpusGenerator output_dir");
+        File outputDir = new File(args[0]);
+        outputDir.mkdirs();
+        List<String> written = new ArrayList<>();
+        for (Shape shape : standardShapes) {
+            File file = new File(outputDir, shape.name + ".dorp");
+            try (OutputStream output = new FileOutputStream(file)) {
+                output.write(generate(shape).getBytes("UTF-8"));
+            }
+            written.add(file.getPath());
+        }
+        for (String path : written)
+            System.out.println(path);
+    }
+}
@@ -0,0 +1,471 @@
+package com.wolfesoftware.dorp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.wolfesoftware.dorp.CodeGenerator.Block;
+import com.wolfesoftware.dorp.CodeGenerator.Function;
+import com.wolfesoftware.dorp.CodeGenerator.Instruction;
+import com.wolfesoftware.dorp.CodeGenerator.LlvmType;
+import com.wolfesoftware.dorp.CodeGenerator.Operand;
+import com.wolfesoftware.dorp.SemanticAnalyzer.CompilationUnit;
+
+/**
+ * writes a module as LLVM bitcode, so llc can load it without lexing and parsing text.
+ * <p>
+ * the functions come from {@link CodeGenerator#lower()}, the same instructions the text is written from,
+ * and they only ever use a handful of forms, so each one is encoded with the type, constant and symbol tables it needs.
+ * the encoding is the one LLVM 3.0 through 3.6 write, since the text is their typed-pointer syntax too:
+ * version 1 relative value ids, no abbreviations, the old store and getelementptr records,
+ * loads and calls without explicit types, and no identification block.
+ * later versions are supposed to upgrade those records as they read them, but that hasn't been tried.
+ * a new instruction form needs a case here, and <code>make check</code> decodes the test programs' bitcode
+ * to make sure it still says the same thing as the text, and has llvm-dis and llc read it when they're installed.
+ */
+public class BitcodeWriter
+{
+    private static final int MODULE_BLOCK = 8;
+    private static final int CONSTANTS_BLOCK = 11;
+    private static final int FUNCTION_BLOCK = 12;
+    private static final int VALUE_SYMTAB_BLOCK = 14;
+    private static final int TYPE_BLOCK = 17;
+
+    private static final int MODULE_CODE_VERSION = 1;
+    private static final int MODULE_CODE_FUNCTION = 8;
+    private static final int TYPE_CODE_NUMENTRY = 1;
+    private static final int TYPE_CODE_VOID = 2;
+    private static final int TYPE_CODE_INTEGER = 7;
+    private static final int TYPE_CODE_POINTER = 8;
+    private static final int TYPE_CODE_STRUCT_ANON = 18;
+    private static final int TYPE_CODE_FUNCTION = 21;
+    private static final int CST_CODE_SETTYPE = 1;
+    private static final int CST_CODE_NULL = 2;
+    private static final int CST_CODE_INTEGER = 4;
+    private static final int VST_CODE_ENTRY = 1;
+    private static final int FUNC_CODE_DECLAREBLOCKS = 1;
+    private static final int FUNC_CODE_INST_BINOP = 2;
+    private static final int FUNC_CODE_INST_CAST = 3;
+    private static final int FUNC_CODE_INST_GEP_OLD = 4;
+    private static final int FUNC_CODE_INST_RET = 10;
+    private static final int FUNC_CODE_INST_BR = 11;
+    private static final int FUNC_CODE_INST_PHI = 16;
+    private static final int FUNC_CODE_INST_LOAD = 20;
+    private static final int FUNC_CODE_INST_STORE_OLD = 24;
+    private static final int FUNC_CODE_INST_CALL = 34;
+
+    private static final String[] binaryOperators = { "add", "sub", "mul", "udiv", "sdiv" };
+    private static final HashMap<String, Integer> castOpcodes = new HashMap<>();
+    static {
+        castOpcodes.put("ptrtoint", 9);
+        castOpcodes.put("bitcast", 11);
+    }
+
+    private final CompilationUnit compilationUnit;
+    /** by their text, in the order of their ids */
+    private final LinkedHashMap<String, LlvmType> types = new LinkedHashMap<>();
+    private final HashMap<String, Integer> typeIds = new HashMap<>();
+    private List<Function> functions;
+    /** functions are the first values, in the order of their records */
+    private final HashMap<String, Integer> globalIds = new HashMap<>();
+    public BitcodeWriter(CompilationUnit compilationUnit)
+    {
+        this.compilationUnit = compilationUnit;
+    }
+
+    public void write(OutputStream output) throws IOException
+    {
+        functions = new CodeGenerator(compilationUnit).lower();
+        for (Function function : functions) {
+            globalIds.put(function.name, globalIds.size());
+            addTypes(function);
+        }
+        // the type table and every function's signature have to come before any function body
+        BitStream stream = new BitStream();
+        stream.enterBlock(MODULE_BLOCK, 3);
+        stream.writeRecord(MODULE_CODE_VERSION, 1);
+        writeTypeTable(stream);
+        for (Function function : functions) {
+            int pointerTypeId = getTypeId(LlvmType.getPointerType(function.getType()));
+            stream.writeRecord(MODULE_CODE_FUNCTION, pointerTypeId, 0, function.blocks == null ? 1 : 0, 0, 0, 0, 0, 0, 0, 0);
+        }
+        for (Function function : functions)
+            if (function.blocks != null)
+                writeFunctionBlock(stream, function);
+        stream.enterBlock(VALUE_SYMTAB_BLOCK, 2);
+        for (Function function : functions)
+            stream.writeRecord(VST_CODE_ENTRY, prepend(globalIds.get(function.name), function.name));
+        stream.endBlock();
+        stream.endBlock();
+        stream.writeTo(output);
+    }
+
+    /** every type gets its id after the types it contains, so there are no forward references */
+    private void addTypes(Function function)
+    {
+        addType(LlvmType.getPointerType(function.getType()));
+        if (function.blocks == null)
+            return;
+        for (Block block : function.blocks) {
+            for (Instruction instruction : block.instructions) {
+                for (Operand operand : instruction.operands)
+                    addType(operand.type);
+                if (instruction.resultType != null)
+                    addType(instruction.resultType);
+            }
+        }
+    }
+    private void addType(LlvmType type)
+    {
+        String key = type.toString();
+        if (typeIds.containsKey(key))
+            return;
+        for (LlvmType element : type.elements)
+            addType(element);
+        typeIds.put(key, typeIds.size());
+        types.put(key, type);
+    }
+    private int getTypeId(LlvmType type)
+    {
+        Integer typeId = typeIds.get(type.toString());
+        if (typeId == null)
+            throw new RuntimeException("no id for this type: " + type);
+        return typeId;
+    }
+
+    private void writeTypeTable(BitStream stream)
+    {
+        stream.enterBlock(TYPE_BLOCK, 4);
+        stream.writeRecord(TYPE_CODE_NUMENTRY, types.size());
+        for (LlvmType type : types.values()) {
+            switch (type.kind) {
+                case VOID:
+                    stream.writeRecord(TYPE_CODE_VOID);
+                    break;
+                case INTEGER:
+                    stream.writeRecord(TYPE_CODE_INTEGER, type.width);
+                    break;
+                case POINTER:
+                    stream.writeRecord(TYPE_CODE_POINTER, getTypeId(type.elements[0]), 0);
+                    break;
+                case FUNCTION:
+                    stream.writeRecord(TYPE_CODE_FUNCTION, getElementTypeIds(type));
+                    break;
+                case STRUCT:
+                    stream.writeRecord(TYPE_CODE_STRUCT_ANON, getElementTypeIds(type));
+                    break;
+                default:
+                    throw null;
+            }
+        }
+        stream.endBlock();
+    }
+    /** after a 0 for the vararg flag or the packed flag */
+    private long[] getElementTypeIds(LlvmType type)
+    {
+        long[] operands = new long[type.elements.length + 1];
+        for (int i = 0; i < type.elements.length; i++)
+            operands[i + 1] = getTypeId(type.elements[i]);
+        return operands;
+    }
+
+    /**
+     * the values in a function are numbered after the functions:
+     * first its parameters, then its constants, then the results of its instructions.
+     */
+    private void writeFunctionBlock(BitStream stream, Function function)
+    {
+        HashMap<String, Integer> valueIds = new HashMap<>();
+        int nextValueId = functions.size();
+        for (String parameterName : function.parameterNames)
+            valueIds.put(parameterName, nextValueId++);
+        ArrayList<Instruction> instructions = new ArrayList<>();
+        HashMap<String, Integer> blockIds = new HashMap<>();
+        for (Block block : function.blocks) {
+            blockIds.put(block.label, blockIds.size());
+            instructions.addAll(block.instructions);
+        }
+
+        // constants are grouped by type, so each type only has to be set once
+        ArrayList<Operand> constants = new ArrayList<>();
+        for (Instruction instruction : instructions)
+            for (Operand operand : instruction.operands)
+                if (operand.isConstant() && !valueIds.containsKey(getConstantKey(operand))) {
+                    valueIds.put(getConstantKey(operand), -1);
+                    constants.add(operand);
+                }
+        ArrayList<Operand> sortedConstants = new ArrayList<>();
+        for (String type : types.keySet())
+            for (Operand constant : constants)
+                if (constant.type.toString().equals(type))
+                    sortedConstants.add(constant);
+        for (Operand constant : sortedConstants)
+            valueIds.put(getConstantKey(constant), nextValueId++);
+
+        // phis can refer to values from later in the function
+        for (Instruction instruction : instructions)
+            if (instruction.resultName != null)
+                valueIds.put(instruction.resultName, nextValueId++);
+
+        stream.enterBlock(FUNCTION_BLOCK, 4);
+        stream.writeRecord(FUNC_CODE_DECLAREBLOCKS, function.blocks.size());
+        if (!sortedConstants.isEmpty()) {
+            stream.enterBlock(CONSTANTS_BLOCK, 4);
+            LlvmType currentType = null;
+            for (Operand constant : sortedConstants) {
+                if (currentType == null || !constant.type.toString().equals(currentType.toString())) {
+                    currentType = constant.type;
+                    stream.writeRecord(CST_CODE_SETTYPE, getTypeId(currentType));
+                }
+                if (constant.text.equals("null"))
+                    stream.writeRecord(CST_CODE_NULL);
+                else
+                    stream.writeRecord(CST_CODE_INTEGER, encodeSigned(signExtend(Long.parseLong(constant.text), currentType.width)));
+            }
+            stream.endBlock();
+        }
+
+        int instructionId = functions.size() + function.parameterNames.length + sortedConstants.size();
+        for (Instruction instruction : instructions) {
+            RecordBuilder record = new RecordBuilder(valueIds, instructionId);
+            Operand[] operands = instruction.operands;
+            switch (instruction.opcode) {
+                case "add":
+                case "sub":
+                case "mul":
+                case "sdiv":
+                    record.addValueAndType(operands[0]);
+                    record.addValue(operands[1]);
+                    record.add(Arrays.asList(binaryOperators).indexOf(instruction.opcode));
+                    stream.writeRecord(FUNC_CODE_INST_BINOP, record.toArray());
+                    break;
+                case "ptrtoint":
+                case "bitcast":
+                    record.addValueAndType(operands[0]);
+                    record.add(getTypeId(instruction.resultType));
+                    record.add(castOpcodes.get(instruction.opcode));
+                    stream.writeRecord(FUNC_CODE_INST_CAST, record.toArray());
+                    break;
+                case "getelementptr":
+                    for (Operand operand : operands)
+                        record.addValueAndType(operand);
+                    stream.writeRecord(FUNC_CODE_INST_GEP_OLD, record.toArray());
+                    break;
+                case "load":
+                    record.addValueAndType(operands[0]);
+                    record.add(0);
+                    record.add(0);
+                    stream.writeRecord(FUNC_CODE_INST_LOAD, record.toArray());
+                    break;
+                case "store":
+                    record.addValueAndType(operands[1]);
+                    record.addValue(operands[0]);
+                    record.add(0);
+                    record.add(0);
+                    stream.writeRecord(FUNC_CODE_INST_STORE_OLD, record.toArray());
+                    break;
+                case "call":
+                case "tail call":
+                    record.add(0);
+                    record.add(instruction.opcode.equals("tail call") ? 1 : 0);
+                    record.addValueAndType(operands[0]);
+                    for (int i = 1; i < operands.length; i++)
+                        record.addValue(operands[i]);
+                    stream.writeRecord(FUNC_CODE_INST_CALL, record.toArray());
+                    break;
+                case "phi":
+                    record.add(getTypeId(instruction.resultType));
+                    for (int i = 0; i < operands.length; i++) {
+                        record.add(encodeSigned(instructionId - record.getValueId(operands[i])));
+                        record.add(blockIds.get(instruction.labels[i]));
+                    }
+                    stream.writeRecord(FUNC_CODE_INST_PHI, record.toArray());
+                    break;
+                case "br":
+                    for (String label : instruction.labels)
+                        record.add(blockIds.get(label));
+                    if (operands.length != 0)
+                        record.addValue(operands[0]);
+                    stream.writeRecord(FUNC_CODE_INST_BR, record.toArray());
+                    break;
+                case "ret":
+                    if (operands.length != 0)
+                        record.addValueAndType(operands[0]);
+                    stream.writeRecord(FUNC_CODE_INST_RET, record.toArray());
+                    break;
+                default:
+                    throw new RuntimeException("no encoding for this instruction: " + instruction);
+            }
+            if (instruction.resultName != null)
+                instructionId++;
+        }
+        stream.endBlock();
+    }
+    private static String getConstantKey(Operand operand)
+    {
+        return operand.type + " " + operand.text;
+    }
+
+    private static long signExtend(long value, int width)
+    {
+        return value << (64 - width) >> (64 - width);
+    }
+    private static long encodeSigned(long value)
+    {
+        return value >= 0 ? value << 1 : (-value << 1) | 1;
+    }
+    private static long[] prepend(long first, String text)
+    {
+        long[] result = new long[text.length() + 1];
+        result[0] = first;
+        for (int i = 0; i < text.length(); i++)
+            result[i + 1] = text.charAt(i);
+        return result;
+    }
+
+    /** the operands of an instruction record, where values are counted back from the instruction */
+    private class RecordBuilder
+    {
+        private final HashMap<String, Integer> valueIds;
+        private final int instructionId;
+        private long[] operands = new long[8];
+        private int size = 0;
+        public RecordBuilder(HashMap<String, Integer> valueIds, int instructionId)
+        {
+            this.valueIds = valueIds;
+            this.instructionId = instructionId;
+        }
+        public void add(long operand)
+        {
+            if (size == operands.length)
+                operands = Arrays.copyOf(operands, size * 2);
+            operands[size++] = operand;
+        }
+        public int getValueId(Operand operand)
+        {
+            Integer valueId;
+            if (operand.text.startsWith("@"))
+                valueId = globalIds.get(operand.text.substring(1));
+            else
+                valueId = valueIds.get(operand.isConstant() ? getConstantKey(operand) : operand.text);
+            if (valueId == null)
+                throw new RuntimeException(operand.text);
+            return valueId;
+        }
+        public void addValue(Operand operand)
+        {
+            add((instructionId - getValueId(operand)) & 0xffffffffL);
+        }
+        /** a forward reference also needs its type, since the reader hasn't seen it yet */
+        public void addValueAndType(Operand operand)
+        {
+            int valueId = getValueId(operand);
+            add((instructionId - valueId) & 0xffffffffL);
+            if (valueId >= instructionId)
+                add(getTypeId(operand.type));
+        }
+        public long[] toArray()
+        {
+            return Arrays.copyOf(operands, size);
+        }
+    }
+
+    /** bits go into 32-bit little-endian words starting from the low bit */
+    private static class BitStream
+    {
+        private int[] words = new int[256];
+        private int wordCount = 0;
+        private long currentValue = 0;
+        private int currentBit = 0;
+        private int abbreviationWidth = 2;
+        /** for each open block, the index of its length word and the abbreviation width outside it */
+        private final ArrayList<int[]> openBlocks = new ArrayList<>();
+
+        public BitStream()
+        {
+            emit('B', 8);
+            emit('C', 8);
+            emit(0x0, 4);
+            emit(0xC, 4);
+            emit(0xE, 4);
+            emit(0xD, 4);
+        }
+
+        private void emit(long value, int width)
+        {
+            currentValue |= value << currentBit;
+            currentBit += width;
+            if (currentBit >= 32) {
+                appendWord((int)currentValue);
+                currentValue >>>= 32;
+                currentBit -= 32;
+            }
+        }
+        private void emitVbr(long value, int width)
+        {
+            long threshold = 1L << (width - 1);
+            while ((value >>> (width - 1)) != 0) {
+                emit((value & (threshold - 1)) | threshold, width);
+                value >>>= width - 1;
+            }
+            emit(value, width);
+        }
+        private void appendWord(int word)
+        {
+            if (wordCount == words.length)
+                words = Arrays.copyOf(words, wordCount * 2);
+            words[wordCount++] = word;
+        }
+        private void alignToWord()
+        {
+            if (currentBit > 0)
+                emit(0, 32 - currentBit);
+        }
+
+        public void enterBlock(int blockId, int newAbbreviationWidth)
+        {
+            emit(1, abbreviationWidth);
+            emitVbr(blockId, 8);
+            emitVbr(newAbbreviationWidth, 4);
+            alignToWord();
+            openBlocks.add(new int[] { wordCount, abbreviationWidth });
+            // the length gets filled in when the block ends
+            appendWord(0);
+            abbreviationWidth = newAbbreviationWidth;
+        }
+        public void endBlock()
+        {
+            emit(0, abbreviationWidth);
+            alignToWord();
+            int[] block = openBlocks.remove(openBlocks.size() - 1);
+            words[block[0]] = wordCount - block[0] - 1;
+            abbreviationWidth = block[1];
+        }
+        public void writeRecord(int code, long... operands)
+        {
+            emit(3, abbreviationWidth);
+            emitVbr(code, 6);
+            emitVbr(operands.length, 6);
+            for (long operand : operands)
+                emitVbr(operand, 6);
+        }
+
+        public void writeTo(OutputStream output) throws IOException
+        {
+            if (!openBlocks.isEmpty() || currentBit != 0)
+                throw null;
+            byte[] bytes = new byte[wordCount * 4];
+            for (int i = 0; i < wordCount; i++) {
+                bytes[i * 4] = (byte)words[i];
+                bytes[i * 4 + 1] = (byte)(words[i] >>> 8);
+                bytes[i * 4 + 2] = (byte)(words[i] >>> 16);
+                bytes[i * 4 + 3] = (byte)(words[i] >>> 24);
+            }
+            output.write(bytes);
+        }
+    }
+}
@@ -1,12 +1,30 @@
 package com.wolfesoftware.dorp;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import com.wolfesoftware.dorp.Parser.NodeType;
 import com.wolfesoftware.dorp.SemanticAnalyzer.Assignment;
+import com.wolfesoftware.dorp.SemanticAnalyzer.BinaryOperation;
 import com.wolfesoftware.dorp.SemanticAnalyzer.CompilationUnit;
 import com.wolfesoftware.dorp.SemanticAnalyzer.DorpExpression;
 import com.wolfesoftware.dorp.SemanticAnalyzer.DorpType;
 import com.wolfesoftware.dorp.SemanticAnalyzer.FunctionCall;
 import com.wolfesoftware.dorp.SemanticAnalyzer.FunctionPrototype;
 import com.wolfesoftware.dorp.SemanticAnalyzer.IfThenElse;
+import com.wolfesoftware.dorp.SemanticAnalyzer.InlinedCall;
 import com.wolfesoftware.dorp.SemanticAnalyzer.LiteralValue;
 import com.wolfesoftware.dorp.SemanticAnalyzer.StatementList;
 import com.wolfesoftware.dorp.SemanticAnalyzer.StaticFunctionDefinition;
@@ -17,6 +35,9 @@ import com.wolfesoftware.dorp.SemanticAnalyzer.VariableDefinition;
 /**
  * much of this class overlaps with functionality provided by the llvm dev library.
  * TODO: someday, consider something like this: https://gist.github.com/andrewrk/1558b3a1c4dd1c130bbf
+ * <p>
+ * each function is lowered to a list of {@link Instruction}s in {@link Block}s,
+ * which get written out as text here, or as bitcode by the {@link BitcodeWriter}.
  */
 public class CodeGenerator
 {
@@ -25,98 +46,258 @@ public class CodeGenerator
     {
         this.compilationUnit = compilationUnit;
     }
-    private final StringBuilder result = new StringBuilder();
-    @Override
-    public String toString()
+    /** just the function this generator is lowering */
+    private Function function;
+    /**
+     * local variables are ssa values instead of stack slots, even when closures capture them,
+     * unless they get reassigned and an escaping closure captures them, which puts them in cellPointers instead.
+     * this is the value each variable has at the current point of the current function.
+     */
+    private LinkedHashMap<VariableDefinition, String> variableValues;
+    /** the cells of the variables that escaping closures share, which are the only ones not in variableValues */
+    private HashMap<VariableDefinition, String> cellPointers;
+    private boolean usesMalloc = false;
+    private Block currentBlock;
+    private StaticFunctionDefinition currentFunction;
+    /** the argument values of each one, and then the block it's in */
+    private ArrayList<String[]> selfTailCalls;
+    public String generate()
     {
-        return result.toString();
+        StringWriter output = new StringWriter();
+        try {
+            generate(output);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return output.toString();
     }
-    public String generate()
+    public void generate(final Writer output) throws IOException
+    {
+        lower(new FunctionOutput() {
+            @Override
+            public void add(Function function) throws IOException
+            {
+                output.append(function.toString());
+            }
+        });
+    }
+    /** the definitions in order, and then the declarations */
+    public List<Function> lower()
+    {
+        final ArrayList<Function> functions = new ArrayList<>();
+        try {
+            lower(new FunctionOutput() {
+                @Override
+                public void add(Function function)
+                {
+                    functions.add(function);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return functions;
+    }
+    private interface FunctionOutput
+    {
+        void add(Function function) throws IOException;
+    }
+    /**
+     * each function gets lowered by its own generator on the worker pool, since they don't share any state.
+     * they're output in order as they finish, so the output is always the same,
+     * and only a few functions per thread are ever in memory at once.
+     */
+    private void lower(FunctionOutput output) throws IOException
     {
+        ForkJoinPool pool = Main.getWorkerPool();
+        int maxPendingFunctions = 4 * pool.getParallelism();
+        ArrayDeque<ForkJoinTask<CodeGenerator>> pendingFunctions = new ArrayDeque<>();
         for (FunctionPrototype functionPrototype : compilationUnit.functions) {
-            renderFunctionDefinition((StaticFunctionDefinition)functionPrototype);
-            result.append("\n");
+            final StaticFunctionDefinition function = (StaticFunctionDefinition)functionPrototype;
+            pendingFunctions.add(pool.submit(new Callable<CodeGenerator>() {
+                @Override
+                public CodeGenerator call()
+                {
+                    CodeGenerator generator = new CodeGenerator(compilationUnit);
+                    generator.renderFunctionDefinition(function);
+                    return generator;
+                }
+            }));
+            if (pendingFunctions.size() == maxPendingFunctions)
+                writeFunction(pendingFunctions.remove().join(), output);
         }
+        while (!pendingFunctions.isEmpty())
+            writeFunction(pendingFunctions.remove().join(), output);
         for (FunctionPrototype prototype : compilationUnit.functionPrototypes)
-            renderFunctionPrototype(prototype);
-        return result.toString();
+            output.add(renderFunctionPrototype(prototype));
+        if (usesMalloc)
+            output.add(new Function("malloc", LlvmType.I8_POINTER, new LlvmType[] { LlvmType.I64 }, null));
     }
-    private void renderFunctionPrototype(FunctionPrototype prototype)
+    private void writeFunction(CodeGenerator generator, FunctionOutput output) throws IOException
     {
-        result.append("declare ");
-        renderType(prototype.signature.returnType);
-        result.append(" @").append(prototype.signature.symbolName).append("(");
-        DorpType[] argumentTypes = prototype.signature.argumentTypes;
-        renderTypeListWithCommas(argumentTypes);
-        result.append(")\n");
+        usesMalloc |= generator.usesMalloc;
+        output.add(generator.function);
     }
-    private void renderFunctionDefinition(StaticFunctionDefinition function)
+    private Function renderFunctionPrototype(FunctionPrototype prototype)
     {
-        result.append("define ");
-        renderType(function.signature.returnType);
-        result.append(" @").append(function.signature.symbolName).append("(");
-        DorpType[] argumentTypes = function.signature.argumentTypes;
-        // TODO: also argument names
-        renderTypeListWithCommas(argumentTypes);
-        result.append(") {\n");
-
-        // alloca all local variables before anything else
-        for (VariableDefinition definition : function.getLocalVariableDefinitions()) {
-            String name = getVariablePointerName(definition);
-            result.append("  ").append(name).append(" = alloca ");
-            renderType(definition.type);
-            result.append("\n");
-        }
+        return new Function(prototype.signature.symbolName, getType(prototype.signature.returnType), getTypes(prototype.signature.argumentTypes), null);
+    }
+    private void renderFunctionDefinition(StaticFunctionDefinition definition)
+    {
+        currentFunction = definition;
+        nextReferenceIndex = 0;
+        variableValues = new LinkedHashMap<>();
+        cellPointers = new HashMap<>();
+        selfTailCalls = new ArrayList<>();
+        DorpType[] argumentTypes = definition.signature.argumentTypes;
+        String[] parameterNames = new String[argumentTypes.length];
+        for (int i = 0; i < argumentTypes.length; i++)
+            parameterNames[i] = "%arg" + i;
+        function = new Function(definition.signature.symbolName, getType(definition.signature.returnType), getTypes(argumentTypes), parameterNames);
+        startBlock("entry");
+        Block entryBlock = currentBlock;
+        allocateCells(definition.getLocalVariableDefinitions());
+        for (int i = 0; i < argumentTypes.length; i++)
+            assignVariable(definition.parameters[i], "%arg" + i);
 
         // function body
-        String returnReference = evaluateExpression(function.expression);
-        DorpType returnType = function.expression.getType();
+        renderReturn(definition.expression);
 
-        // return statement
-        result.append("  ret ");
-        if (!isVoid(returnType)) {
-            renderType(returnType);
-            result.append(" ").append(returnReference);
-        } else {
-            result.append("void");
+        // the body is a loop if it calls itself in tail position, and then the arguments are phis
+        if (!selfTailCalls.isEmpty()) {
+            // the code that was in the entry block is in the loop block now
+            entryBlock.label = "loop";
+            for (int i = 0; i < argumentTypes.length; i++) {
+                Operand[] values = new Operand[selfTailCalls.size() + 1];
+                String[] blocks = new String[values.length];
+                values[0] = new Operand(function.parameterTypes[i], "%arg" + i + ".entry");
+                blocks[0] = "entry";
+                for (int j = 0; j < selfTailCalls.size(); j++) {
+                    String[] selfTailCall = selfTailCalls.get(j);
+                    String block = selfTailCall[argumentTypes.length];
+                    values[j + 1] = new Operand(function.parameterTypes[i], selfTailCall[i]);
+                    blocks[j + 1] = block.equals("entry") ? "loop" : block;
+                }
+                entryBlock.instructions.add(i, new Instruction("phi", "%arg" + i, function.parameterTypes[i], values, blocks));
+                parameterNames[i] = "%arg" + i + ".entry";
+            }
+            Block loopEntryBlock = new Block("entry");
+            loopEntryBlock.instructions.add(new Instruction("br", null, null, new Operand[0], new String[] { "loop" }));
+            function.blocks.add(0, loopEntryBlock);
         }
-        result.append("\n");
-        result.append("}\n");
     }
-    private String evaluateExpression(DorpExpression expression)
+    /**
+     * evaluates the expression that the function returns, and returns it.
+     * calls in tail position become tail calls, and calls to the function itself jump back to the start.
+     */
+    private void renderReturn(DorpExpression expression)
     {
         if (expression instanceof StatementList) {
-            StatementList statementList = (StatementList)expression;
-            String resultReference = null;
-            for (DorpExpression childExpression : statementList.expressions)
-                resultReference = evaluateExpression(childExpression);
-            return resultReference;
+            List<DorpExpression> expressions = ((StatementList)expression).expressions;
+            if (expressions.isEmpty()) {
+                renderReturnValue(null);
+                return;
+            }
+            for (int i = 0; i < expressions.size() - 1; i++)
+                evaluateStatement(expressions.get(i));
+            renderReturn(expressions.get(expressions.size() - 1));
+            return;
+        }
+        if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            String conditionReference = evaluateExpression(ifThenElse.condition);
+            if (conditionReference.equals("1")) {
+                renderReturn(ifThenElse.thenValue);
+                return;
+            }
+            if (conditionReference.equals("0")) {
+                if (ifThenElse.elseValue != null)
+                    renderReturn(ifThenElse.elseValue);
+                else
+                    renderReturnValue(null);
+                return;
+            }
+            // both paths return on their own, so nothing needs to be merged
+            String thenLabel = generateLabel();
+            String elseLabel = generateLabel();
+            renderBranch(new Operand(LlvmType.I1, conditionReference), thenLabel, elseLabel);
+            LinkedHashMap<VariableDefinition, String> valuesBefore = new LinkedHashMap<>(variableValues);
+            startBlock(thenLabel);
+            renderReturn(ifThenElse.thenValue);
+            variableValues = valuesBefore;
+            startBlock(elseLabel);
+            if (ifThenElse.elseValue != null)
+                renderReturn(ifThenElse.elseValue);
+            else
+                renderReturnValue(null);
+            return;
+        }
+        if (expression instanceof InlinedCall) {
+            evaluateInlinedCall((InlinedCall)expression, true);
+            return;
         }
         if (expression instanceof FunctionCall) {
             FunctionCall functionCall = (FunctionCall)expression;
-            String functionReference = evaluateExpression(functionCall.function);
-            String[] argumentReferences = new String[functionCall.argumentValues.length];
-            for (int i = 0; i < functionCall.argumentValues.length; i++)
-                argumentReferences[i] = evaluateExpression(functionCall.argumentValues[i]);
-            boolean isVoid = isVoid(functionCall.returnType);
-            String resultReference = isVoid ? null : generateReference();
-            result.append("  ");
-            if (!isVoid)
-                result.append(resultReference).append(" = ");
-            result.append("call ");
-            renderType(functionCall.returnType);
-            result.append(" ").append(functionReference).append("(");
-            if (argumentReferences.length > 0) {
-                renderType(functionCall.argumentValues[0].getType());
-                result.append(" ").append(argumentReferences[0]);
-                for (int i = 1; i < argumentReferences.length; i++) {
-                    result.append(", ");
-                    renderType(functionCall.argumentValues[i].getType());
-                    result.append(" ").append(argumentReferences[i]);
-                }
+            if (functionCall.function instanceof LiteralValue && functionCall.function.getType() == currentFunction.signature) {
+                // the arguments become the phis at the top of the loop
+                String[] selfTailCall = new String[functionCall.argumentValues.length + 1];
+                for (int i = 0; i < functionCall.argumentValues.length; i++)
+                    selfTailCall[i] = evaluateExpression(functionCall.argumentValues[i]);
+                selfTailCall[functionCall.argumentValues.length] = currentBlock.label;
+                selfTailCalls.add(selfTailCall);
+                renderJump("loop");
+                return;
             }
-            result.append(")\n");
-            return resultReference;
+            renderReturnValue(renderCall(functionCall, true));
+            return;
+        }
+        renderReturnValue(evaluateExpression(expression));
+    }
+    private void renderReturnValue(String valueReference)
+    {
+        // the entry point returns void no matter what its last statement is
+        DorpType returnType = currentFunction.signature.returnType;
+        Operand[] operands = isVoid(returnType) ? new Operand[0] : new Operand[] { new Operand(getType(returnType), valueReference) };
+        currentBlock.instructions.add(new Instruction("ret", null, null, operands, new String[0]));
+    }
+    /** like {@link #evaluateExpression(DorpExpression)} for when nothing uses the result */
+    private void evaluateStatement(DorpExpression expression)
+    {
+        if (expression instanceof StatementList) {
+            for (DorpExpression childExpression : ((StatementList)expression).expressions)
+                evaluateStatement(childExpression);
+        } else if (expression instanceof IfThenElse) {
+            evaluateIfThenElse((IfThenElse)expression, false);
+        } else {
+            evaluateExpression(expression);
+        }
+    }
+    private String evaluateExpression(DorpExpression expression)
+    {
+        if (expression instanceof StatementList) {
+            List<DorpExpression> expressions = ((StatementList)expression).expressions;
+            if (expressions.isEmpty())
+                return null;
+            for (int i = 0; i < expressions.size() - 1; i++)
+                evaluateStatement(expressions.get(i));
+            return evaluateExpression(expressions.get(expressions.size() - 1));
+        }
+        if (expression instanceof FunctionCall)
+            return renderCall((FunctionCall)expression, false);
+        if (expression instanceof InlinedCall)
+            return evaluateInlinedCall((InlinedCall)expression, false);
+        if (expression instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation)expression;
+            String leftReference = evaluateExpression(operation.left);
+            String rightReference = evaluateExpression(operation.right);
+            if (isIntegerConstant(leftReference) && isIntegerConstant(rightReference)) {
+                // variables that hold constants only show up as constants here
+                Integer value = SemanticAnalyzer.foldIntegerOperation(operation.operator, Integer.parseInt(leftReference), Integer.parseInt(rightReference));
+                if (value != null)
+                    return value.toString();
+            }
+            LlvmType type = getType(operation.getType());
+            return renderInstruction(getInstructionName(operation.operator), type, new Operand(type, leftReference), new Operand(type, rightReference));
         }
         if (expression instanceof LiteralValue) {
             LiteralValue constant = (LiteralValue)expression;
@@ -126,84 +307,305 @@ public class CodeGenerator
                 return "@" + signature.symbolName;
             }
             if (type instanceof TemplateFunctionType) {
-                // TODO
-                throw null;
+                // which function it is is known statically. all it has at runtime is its environment.
+                List<VariableDefinition> environment = ((TemplateFunctionType)type).getEnvironment();
+                if (environment == null)
+                    return "null";
+                return renderClosureRecord(environment);
             }
             if ("Boolean".equals(type.name))
                 return constant.text.equals("true") ? "1" : "0";
             return Main.nullCheck(constant.text);
         }
-        if (expression instanceof IfThenElse) {
-            IfThenElse ifThenElse = (IfThenElse)expression;
-            String conditionReference = evaluateExpression(ifThenElse.condition);
-            String thenLabel = generateLabel();
-            String elseLabel = generateLabel();
-            String doneLabel = ifThenElse.elseValue != null ? generateLabel() : elseLabel;
-            result.append("  br ");
-            // we know this is i1:
-            renderType(ifThenElse.condition.getType());
-            result.append(" ").append(conditionReference);
-            result.append(", label %").append(thenLabel).append(", label %").append(elseLabel).append("\n");
-
-            result.append(thenLabel).append(":\n");
-            String thenReference = evaluateExpression(ifThenElse.thenValue);
-            if (ifThenElse.returnValueVariable != null)
-                renderAssignment(thenReference, ifThenElse.returnValueVariable);
-            result.append("  br label %").append(doneLabel).append("\n");
-
-            if (ifThenElse.elseValue != null) {
-                result.append(elseLabel).append(":\n");
-                String elseReference = evaluateExpression(ifThenElse.elseValue);
-                if (ifThenElse.returnValueVariable != null)
-                    renderAssignment(elseReference, ifThenElse.returnValueVariable);
-                result.append("  br label %").append(doneLabel).append("\n");
-            }
-
-            result.append(doneLabel).append(":\n");
-            String returnReference = null;
-            if (ifThenElse.returnValueVariable != null)
-                returnReference = renderVariableGet(ifThenElse.returnValueVariable);
-            return returnReference;
-        }
+        if (expression instanceof IfThenElse)
+            return evaluateIfThenElse((IfThenElse)expression, true);
         if (expression instanceof Assignment) {
             Assignment assignment = (Assignment)expression;
             String valueReference = evaluateExpression(assignment.value);
-            renderAssignment(valueReference, assignment.definition);
+            if (assignment.definition.constantValue == null)
+                assignVariable(assignment.definition, valueReference);
             return valueReference;
         }
         if (expression instanceof VariableDefinition) {
             VariableDefinition definition = (VariableDefinition)expression;
-            return renderVariableGet(definition);
+            if (definition.constantValue != null)
+                return evaluateExpression(definition.constantValue);
+            if (definition.isCell) {
+                LlvmType type = getType(definition.getType());
+                return renderInstruction("load", type, new Operand(LlvmType.getPointerType(type), getCellPointer(definition)));
+            }
+            if (!variableValues.containsKey(definition))
+                throw new RuntimeException();
+            return variableValues.get(definition);
         }
         throw null;
     }
-    private String renderVariableGet(VariableDefinition definition)
+    /** @param isResultUsed whether to make a phi for the result. if not, the branches are statements too. */
+    private String evaluateIfThenElse(IfThenElse ifThenElse, boolean isResultUsed)
+    {
+        String conditionReference = evaluateExpression(ifThenElse.condition);
+        if (conditionReference.equals("1"))
+            return evaluateBranch(ifThenElse.thenValue, isResultUsed);
+        if (conditionReference.equals("0"))
+            return ifThenElse.elseValue != null ? evaluateBranch(ifThenElse.elseValue, isResultUsed) : null;
+        String thenLabel = generateLabel();
+        String elseLabel = generateLabel();
+        String doneLabel = ifThenElse.elseValue != null ? generateLabel() : elseLabel;
+        // we know this is i1:
+        renderBranch(new Operand(getType(ifThenElse.condition.getType()), conditionReference), thenLabel, elseLabel);
+        String conditionBlock = currentBlock.label;
+        LinkedHashMap<VariableDefinition, String> valuesBefore = new LinkedHashMap<>(variableValues);
+
+        startBlock(thenLabel);
+        String thenReference = evaluateBranch(ifThenElse.thenValue, isResultUsed);
+        renderJump(doneLabel);
+        String thenBlock = currentBlock.label;
+        LinkedHashMap<VariableDefinition, String> thenValues = variableValues;
+
+        variableValues = valuesBefore;
+        String elseReference = null;
+        String elseBlock = conditionBlock;
+        if (ifThenElse.elseValue != null) {
+            startBlock(elseLabel);
+            elseReference = evaluateBranch(ifThenElse.elseValue, isResultUsed);
+            renderJump(doneLabel);
+            elseBlock = currentBlock.label;
+        }
+        LinkedHashMap<VariableDefinition, String> elseValues = variableValues;
+
+        startBlock(doneLabel);
+        // variables that got different values on the two paths need a phi
+        HashMap<String, String> phis = new HashMap<>();
+        variableValues = new LinkedHashMap<>();
+        for (Map.Entry<VariableDefinition, String> entry : thenValues.entrySet()) {
+            VariableDefinition definition = entry.getKey();
+            if (!elseValues.containsKey(definition))
+                continue;
+            String thenValue = entry.getValue();
+            String elseValue = elseValues.get(definition);
+            if (isVoid(definition.getType()) || thenValue.equals(elseValue))
+                variableValues.put(definition, thenValue);
+            else
+                variableValues.put(definition, renderPhi(phis, definition.getType(), thenValue, thenBlock, elseValue, elseBlock));
+        }
+        if (ifThenElse.returnValueVariable == null || !isResultUsed)
+            return null;
+        return renderPhi(phis, ifThenElse.returnValueVariable.getType(), thenReference, thenBlock, elseReference, elseBlock);
+    }
+    private String evaluateBranch(DorpExpression expression, boolean isResultUsed)
+    {
+        if (isResultUsed)
+            return evaluateExpression(expression);
+        evaluateStatement(expression);
+        return null;
+    }
+    /** @param isTail whether the caller returns the result right away, so it doesn't need its stack frame anymore */
+    private String renderCall(FunctionCall functionCall, boolean isTail)
+    {
+        if (functionCall.function.getType() instanceof TemplateFunctionType) {
+            // TODO: calls that could go to more than one instantiation
+            throw null;
+        }
+        Operand[] operands = new Operand[functionCall.argumentValues.length + 1];
+        operands[0] = new Operand(getType(functionCall.function.getType()), evaluateExpression(functionCall.function));
+        for (int i = 0; i < functionCall.argumentValues.length; i++) {
+            DorpExpression argumentValue = functionCall.argumentValues[i];
+            operands[i + 1] = new Operand(getType(argumentValue.getType()), evaluateExpression(argumentValue));
+        }
+        return renderInstruction(isTail ? "tail call" : "call", getType(functionCall.returnType), operands);
+    }
+    /** @param isTail whether the body is what the function returns, which returns it instead of giving the result */
+    private String evaluateInlinedCall(InlinedCall inlinedCall, boolean isTail)
+    {
+        String environmentReference = evaluateExpression(inlinedCall.function);
+        // all the arguments get evaluated before any of them are bound, like a real call
+        String[] argumentReferences = new String[inlinedCall.argumentValues.length];
+        for (int i = 0; i < argumentReferences.length; i++)
+            argumentReferences[i] = evaluateExpression(inlinedCall.argumentValues[i]);
+        // the closure's free variables are only bound from its record during the call
+        HashMap<VariableDefinition, String> cellPointersBefore = new HashMap<>(cellPointers);
+        HashMap<VariableDefinition, String> shadowedValues = new HashMap<>();
+        if (inlinedCall.environment != null)
+            bindEnvironment(inlinedCall.environment, environmentReference, shadowedValues);
+        allocateCells(inlinedCall.localVariables);
+        for (int i = 0; i < argumentReferences.length; i++)
+            assignVariable(inlinedCall.parameters[i], argumentReferences[i]);
+        String resultReference = null;
+        if (isTail)
+            renderReturn(inlinedCall.body);
+        else
+            resultReference = evaluateExpression(inlinedCall.body);
+        // the same instantiation can be inlined again later, and its variables start over
+        variableValues.keySet().removeAll(inlinedCall.localVariables);
+        for (Map.Entry<VariableDefinition, String> entry : shadowedValues.entrySet()) {
+            if (entry.getValue() != null)
+                variableValues.put(entry.getKey(), entry.getValue());
+            else
+                variableValues.remove(entry.getKey());
+        }
+        cellPointers = cellPointersBefore;
+        return resultReference;
+    }
+    private void assignVariable(VariableDefinition definition, String valueReference)
+    {
+        if (!definition.isCell) {
+            variableValues.put(definition, valueReference);
+            return;
+        }
+        LlvmType type = getType(definition.getType());
+        renderStore(type, valueReference, getCellPointer(definition));
+    }
+    private String getCellPointer(VariableDefinition definition)
     {
-        if (definition.constantValue != null)
-            return evaluateExpression(definition.constantValue);
-        String valueReference = generateReference();
-        result.append("  ").append(valueReference).append(" = load ");
-        renderType(definition.getType());
-        result.append("* ").append(getVariablePointerName(definition));
-        result.append("\n");
+        String cellPointer = cellPointers.get(definition);
+        if (cellPointer == null)
+            throw new RuntimeException();
+        return cellPointer;
+    }
+    /** every call gets new cells for its own variables */
+    private void allocateCells(Collection<VariableDefinition> localVariables)
+    {
+        for (VariableDefinition definition : localVariables)
+            if (definition.isCell)
+                cellPointers.put(definition, allocate(getType(definition.getType())));
+    }
+    /** @return the record as an i8* */
+    private String renderClosureRecord(List<VariableDefinition> environment)
+    {
+        LlvmType recordType = getRecordType(environment);
+        String recordPointer = allocate(recordType);
+        for (int i = 0; i < environment.size(); i++) {
+            VariableDefinition definition = environment.get(i);
+            String fieldPointer = getFieldPointer(recordType, recordPointer, i);
+            String value;
+            if (definition.isCell) {
+                value = getCellPointer(definition);
+            } else {
+                value = variableValues.get(definition);
+                if (value == null)
+                    throw new RuntimeException();
+            }
+            renderStore(getFieldType(definition), value, fieldPointer);
+        }
+        return renderInstruction("bitcast", LlvmType.I8_POINTER, new Operand(LlvmType.getPointerType(recordType), recordPointer));
+    }
+    /** @param shadowedValues gets what the variables had before, or <code>null</code> */
+    private void bindEnvironment(List<VariableDefinition> environment, String closureReference, HashMap<VariableDefinition, String> shadowedValues)
+    {
+        LlvmType recordType = getRecordType(environment);
+        String recordPointer = renderInstruction("bitcast", LlvmType.getPointerType(recordType), new Operand(LlvmType.I8_POINTER, closureReference));
+        for (int i = 0; i < environment.size(); i++) {
+            VariableDefinition definition = environment.get(i);
+            String fieldPointer = getFieldPointer(recordType, recordPointer, i);
+            LlvmType fieldType = getFieldType(definition);
+            String value = renderInstruction("load", fieldType, new Operand(LlvmType.getPointerType(fieldType), fieldPointer));
+            if (definition.isCell) {
+                cellPointers.put(definition, value);
+            } else {
+                shadowedValues.put(definition, variableValues.get(definition));
+                variableValues.put(definition, value);
+            }
+        }
+    }
+    /** mallocs one of these */
+    private String allocate(LlvmType type)
+    {
+        usesMalloc = true;
+        LlvmType pointerType = LlvmType.getPointerType(type);
+        String sizePointer = renderInstruction("getelementptr", pointerType, new Operand(pointerType, "null"), new Operand(LlvmType.I32, "1"));
+        String size = renderInstruction("ptrtoint", LlvmType.I64, new Operand(pointerType, sizePointer));
+        LlvmType mallocType = LlvmType.getPointerType(LlvmType.getFunctionType(LlvmType.I8_POINTER, LlvmType.I64));
+        String memory = renderInstruction("call", LlvmType.I8_POINTER, new Operand(mallocType, "@malloc"), new Operand(LlvmType.I64, size));
+        return renderInstruction("bitcast", pointerType, new Operand(LlvmType.I8_POINTER, memory));
+    }
+    private String getFieldPointer(LlvmType recordType, String recordPointer, int fieldIndex)
+    {
+        LlvmType fieldPointerType = LlvmType.getPointerType(recordType.elements[fieldIndex]);
+        Operand record = new Operand(LlvmType.getPointerType(recordType), recordPointer);
+        return renderInstruction("getelementptr", fieldPointerType, record, new Operand(LlvmType.I32, "0"), new Operand(LlvmType.I32, String.valueOf(fieldIndex)));
+    }
+    /** the values of the free variables, or pointers to their cells */
+    private LlvmType getRecordType(List<VariableDefinition> environment)
+    {
+        LlvmType[] fieldTypes = new LlvmType[environment.size()];
+        for (int i = 0; i < fieldTypes.length; i++)
+            fieldTypes[i] = getFieldType(environment.get(i));
+        return LlvmType.getStructType(fieldTypes);
+    }
+    private LlvmType getFieldType(VariableDefinition definition)
+    {
+        LlvmType type = getType(definition.getType());
+        return definition.isCell ? LlvmType.getPointerType(type) : type;
+    }
+    private static boolean isIntegerConstant(String reference)
+    {
+        try {
+            Integer.parseInt(reference);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+    private static String getInstructionName(NodeType operator)
+    {
+        switch (operator) {
+            case PLUS:
+                return "add";
+            case MINUS:
+                return "sub";
+            case TIMES:
+                return "mul";
+            case DIVIDED_BY:
+                return "sdiv";
+            default:
+                throw null;
+        }
+    }
+    /** @return the result of the instruction, or <code>null</code> if it's void */
+    private String renderInstruction(String opcode, LlvmType resultType, Operand... operands)
+    {
+        String resultReference = resultType == LlvmType.VOID ? null : generateReference();
+        currentBlock.instructions.add(new Instruction(opcode, resultReference, resultType, operands, new String[0]));
+        return resultReference;
+    }
+    private void renderStore(LlvmType type, String valueReference, String pointerReference)
+    {
+        Operand[] operands = { new Operand(type, valueReference), new Operand(LlvmType.getPointerType(type), pointerReference) };
+        currentBlock.instructions.add(new Instruction("store", null, null, operands, new String[0]));
+    }
+    private void renderJump(String label)
+    {
+        currentBlock.instructions.add(new Instruction("br", null, null, new Operand[0], new String[] { label }));
+    }
+    private void renderBranch(Operand condition, String thenLabel, String elseLabel)
+    {
+        currentBlock.instructions.add(new Instruction("br", null, null, new Operand[] { condition }, new String[] { thenLabel, elseLabel }));
+    }
+    /** @param phis the phis already in this block by their text, so that the same one isn't made twice */
+    private String renderPhi(HashMap<String, String> phis, DorpType type, String value1, String block1, String value2, String block2)
+    {
+        LlvmType llvmType = getType(type);
+        Operand[] values = { new Operand(llvmType, value1), new Operand(llvmType, value2) };
+        Instruction phi = new Instruction("phi", null, llvmType, values, new String[] { block1, block2 });
+        String phiText = phi.toString();
+        String valueReference = phis.get(phiText);
+        if (valueReference != null)
+            return valueReference;
+        valueReference = generateReference();
+        currentBlock.instructions.add(new Instruction("phi", valueReference, llvmType, values, phi.labels));
+        phis.put(phiText, valueReference);
         return valueReference;
     }
-    private void renderAssignment(String valueReference, VariableDefinition definition)
+    private void startBlock(String label)
     {
-        result.append("  store ");
-        renderType(definition.getType());
-        result.append(" ").append(valueReference).append(", ");
-        renderType(definition.getType());
-        result.append("* ").append(getVariablePointerName(definition)).append("\n");
+        currentBlock = new Block(label);
+        function.blocks.add(currentBlock);
     }
     private boolean isVoid(DorpType type)
     {
         return "Void".equals(type.name);
     }
-    private String getVariablePointerName(VariableDefinition definition)
-    {
-        return "%var." + definition.name;
-    }
+    /** values and labels are numbered from 0 in each function */
     private int nextReferenceIndex = 0;
     private String generateReference()
     {
@@ -213,40 +615,237 @@ public class CodeGenerator
     {
         return "label" + nextReferenceIndex++;
     }
-    private void renderTypeListWithCommas(DorpType[] types)
+    private LlvmType[] getTypes(DorpType[] types)
     {
-        if (types.length == 0)
-            return;
-        renderType(types[0]);
-        for (int i = 1; i < types.length; i++) {
-            result.append(", ");
-            renderType(types[i]);
-        }
+        LlvmType[] result = new LlvmType[types.length];
+        for (int i = 0; i < types.length; i++)
+            result[i] = getType(types[i]);
+        return result;
     }
-    private void renderType(DorpType type)
+    private LlvmType getType(DorpType type)
     {
         if (type instanceof StaticFunctionSignature) {
             // functions used as first-class objects are really the pointer to the function
             StaticFunctionSignature signature = (StaticFunctionSignature)type;
-            renderType(signature.returnType);
-            result.append("(");
-            renderTypeListWithCommas(signature.argumentTypes);
-            result.append(")*");
-        } else if (type instanceof TemplateFunctionType) {
-            // TODO
-            throw null;
-        } else {
-            switch (type.name) {
-                case "Integer":
-                    result.append("i32");
+            return LlvmType.getPointerType(LlvmType.getFunctionType(getType(signature.returnType), getTypes(signature.argumentTypes)));
+        }
+        if (type instanceof TemplateFunctionType) {
+            // the closure's environment
+            return LlvmType.I8_POINTER;
+        }
+        switch (type.name) {
+            case "Integer":
+                return LlvmType.I32;
+            case "Boolean":
+                return LlvmType.I1;
+            case "Void":
+                return LlvmType.VOID;
+            default:
+                throw null;
+        }
+    }
+
+    public enum TypeKind
+    {
+        VOID, INTEGER, POINTER, FUNCTION, STRUCT,
+    }
+    /** two types are the same if their text is the same */
+    public static class LlvmType
+    {
+        public static final LlvmType VOID = new LlvmType(TypeKind.VOID, 0, new LlvmType[0], "void");
+        public static final LlvmType I1 = new LlvmType(TypeKind.INTEGER, 1, new LlvmType[0], "i1");
+        public static final LlvmType I8 = new LlvmType(TypeKind.INTEGER, 8, new LlvmType[0], "i8");
+        public static final LlvmType I32 = new LlvmType(TypeKind.INTEGER, 32, new LlvmType[0], "i32");
+        public static final LlvmType I64 = new LlvmType(TypeKind.INTEGER, 64, new LlvmType[0], "i64");
+        public static final LlvmType I8_POINTER = getPointerType(I8);
+
+        public final TypeKind kind;
+        public final int width;
+        /** the pointee, the return type and then the parameter types, or the fields */
+        public final LlvmType[] elements;
+        private final String text;
+        private LlvmType(TypeKind kind, int width, LlvmType[] elements, String text)
+        {
+            this.kind = kind;
+            this.width = width;
+            this.elements = elements;
+            this.text = text;
+        }
+        public static LlvmType getPointerType(LlvmType elementType)
+        {
+            return new LlvmType(TypeKind.POINTER, 0, new LlvmType[] { elementType }, elementType.text + "*");
+        }
+        public static LlvmType getFunctionType(LlvmType returnType, LlvmType... parameterTypes)
+        {
+            LlvmType[] elements = new LlvmType[parameterTypes.length + 1];
+            elements[0] = returnType;
+            System.arraycopy(parameterTypes, 0, elements, 1, parameterTypes.length);
+            return new LlvmType(TypeKind.FUNCTION, 0, elements, returnType.text + "(" + join(parameterTypes) + ")");
+        }
+        public static LlvmType getStructType(LlvmType... fieldTypes)
+        {
+            return new LlvmType(TypeKind.STRUCT, 0, fieldTypes, "{ " + join(fieldTypes) + " }");
+        }
+        @Override
+        public String toString()
+        {
+            return text;
+        }
+    }
+    private static String join(Object[] items)
+    {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < items.length; i++) {
+            if (i > 0)
+                result.append(", ");
+            result.append(items[i]);
+        }
+        return result.toString();
+    }
+
+    /** a value and its type. the text is a %local, an @global, or a constant. */
+    public static class Operand
+    {
+        public final LlvmType type;
+        public final String text;
+        public Operand(LlvmType type, String text)
+        {
+            this.type = type;
+            this.text = text;
+        }
+        public boolean isConstant()
+        {
+            return !text.startsWith("%") && !text.startsWith("@");
+        }
+        @Override
+        public String toString()
+        {
+            return type + " " + text;
+        }
+    }
+    /**
+     * the opcodes are add, sub, mul, sdiv, ptrtoint, bitcast, getelementptr, load, store, call, tail call, phi, br and ret.
+     * a call's first operand is the function, and a phi's operands go with its labels.
+     */
+    public static class Instruction
+    {
+        public final String opcode;
+        /** <code>null</code> if the instruction doesn't have a value */
+        public final String resultName;
+        /** <code>null</code> for store, br and ret */
+        public final LlvmType resultType;
+        public final Operand[] operands;
+        public final String[] labels;
+        public Instruction(String opcode, String resultName, LlvmType resultType, Operand[] operands, String[] labels)
+        {
+            this.opcode = opcode;
+            this.resultName = resultName;
+            this.resultType = resultType;
+            this.operands = operands;
+            this.labels = labels;
+        }
+        @Override
+        public String toString()
+        {
+            StringBuilder result = new StringBuilder();
+            if (resultName != null)
+                result.append(resultName).append(" = ");
+            result.append(opcode).append(" ");
+            switch (opcode) {
+                case "add":
+                case "sub":
+                case "mul":
+                case "sdiv":
+                    result.append(operands[0]).append(", ").append(operands[1].text);
+                    break;
+                case "ptrtoint":
+                case "bitcast":
+                    result.append(operands[0]).append(" to ").append(resultType);
                     break;
-                case "Boolean":
-                    result.append("i1");
+                case "getelementptr":
+                case "load":
+                case "store":
+                    result.append(join(operands));
                     break;
-                case "Void":
-                    result.append("void");
+                case "call":
+                case "tail call":
+                    result.append(resultType).append(" ").append(operands[0].text).append("(");
+                    result.append(join(Arrays.copyOfRange(operands, 1, operands.length))).append(")");
                     break;
+                case "phi":
+                    result.append(resultType);
+                    for (int i = 0; i < operands.length; i++) {
+                        result.append(i == 0 ? " [ " : ", [ ");
+                        result.append(operands[i].text).append(", %").append(labels[i]).append(" ]");
+                    }
+                    break;
+                case "br":
+                    if (operands.length == 0)
+                        result.append("label %").append(labels[0]);
+                    else
+                        result.append(operands[0]).append(", label %").append(labels[0]).append(", label %").append(labels[1]);
+                    break;
+                case "ret":
+                    result.append(operands.length == 0 ? "void" : operands[0].toString());
+                    break;
+                default:
+                    throw null;
+            }
+            return result.toString();
+        }
+    }
+    public static class Block
+    {
+        public String label;
+        public final ArrayList<Instruction> instructions = new ArrayList<>();
+        public Block(String label)
+        {
+            this.label = label;
+        }
+    }
+    public static class Function
+    {
+        public final String name;
+        public final LlvmType returnType;
+        public final LlvmType[] parameterTypes;
+        /** <code>null</code> for a declaration */
+        public final String[] parameterNames;
+        /** <code>null</code> for a declaration */
+        public final ArrayList<Block> blocks;
+        public Function(String name, LlvmType returnType, LlvmType[] parameterTypes, String[] parameterNames)
+        {
+            this.name = name;
+            this.returnType = returnType;
+            this.parameterTypes = parameterTypes;
+            this.parameterNames = parameterNames;
+            this.blocks = parameterNames != null ? new ArrayList<Block>() : null;
+        }
+        public LlvmType getType()
+        {
+            return LlvmType.getFunctionType(returnType, parameterTypes);
+        }
+        @Override
+        public String toString()
+        {
+            StringBuilder result = new StringBuilder();
+            if (blocks == null) {
+                result.append("declare ").append(returnType).append(" @").append(name).append("(").append(join(parameterTypes)).append(")\n");
+                return result.toString();
+            }
+            result.append("define ").append(returnType).append(" @").append(name).append("(");
+            for (int i = 0; i < parameterTypes.length; i++) {
+                if (i > 0)
+                    result.append(", ");
+                result.append(parameterTypes[i]).append(" ").append(parameterNames[i]);
+            }
+            result.append(") {\n");
+            for (Block block : blocks) {
+                result.append(block.label).append(":\n");
+                for (Instruction instruction : block.instructions)
+                    result.append("  ").append(instruction).append("\n");
             }
+            result.append("}\n\n");
+            return result.toString();
         }
     }
 }
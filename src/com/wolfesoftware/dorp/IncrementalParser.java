@@ -0,0 +1,239 @@
+package com.wolfesoftware.dorp;
+
+import java.util.Arrays;
+
+import com.wolfesoftware.dorp.Parser.NodeType;
+import com.wolfesoftware.dorp.Tokenizer.TokenType;
+
+/**
+ * keeps the tokens and syntax tree of a source file up to date while it's being edited.
+ * <p>
+ * no token spans a newline, so an edit only gets the lines it touches tokenized again.
+ * then only the innermost statement or block around the tokens that actually changed gets parsed again,
+ * and the rest of the old tree is reused.
+ * if that part doesn't come out the same shape, the next one out gets parsed instead, up to the whole file.
+ */
+public class IncrementalParser
+{
+    private TokenBuffer tokens;
+    /** <code>null</code> when the current source doesn't parse */
+    private SyntaxTree syntaxTree = null;
+    public IncrementalParser(String source)
+    {
+        tokens = new Tokenizer(source).tokenize();
+    }
+
+    public TokenBuffer getTokens()
+    {
+        return tokens;
+    }
+    /** @return the tree from the last successful {@link #parse()} or {@link #edit(int, int, String)}, or <code>null</code> */
+    public SyntaxTree getSyntaxTree()
+    {
+        return syntaxTree;
+    }
+
+    /** parses the whole source from scratch */
+    public SyntaxTree parse()
+    {
+        syntaxTree = null;
+        syntaxTree = new Parser(tokens).parse();
+        return syntaxTree;
+    }
+
+    /**
+     * replaces the source text from start to end.
+     * the tokens are always updated, but if the new source doesn't parse,
+     * this throws and the next edit has to parse from scratch.
+     */
+    public SyntaxTree edit(int start, int end, String replacement)
+    {
+        TokenBuffer oldTokens = tokens;
+        String oldSource = oldTokens.getSource();
+        String newSource = oldSource.substring(0, start) + replacement + oldSource.substring(end);
+        int offsetDelta = replacement.length() - (end - start);
+
+        // tokenize whole lines again
+        int linesStart = oldSource.lastIndexOf('\n', start - 1) + 1;
+        int linesEnd = oldSource.indexOf('\n', end);
+        linesEnd = linesEnd != -1 ? linesEnd + 1 : oldSource.length();
+        TokenBuffer lineTokens = new Tokenizer(newSource).tokenize(linesStart, linesEnd + offsetDelta);
+
+        // narrow it down to the tokens that changed
+        int oldFrom = oldTokens.findToken(linesStart);
+        int oldTo = oldTokens.findToken(linesEnd);
+        int newFrom = 0;
+        int newTo = lineTokens.size();
+        while (oldFrom < oldTo && newFrom < newTo && isSameToken(oldTokens, oldFrom, lineTokens, newFrom, 0)) {
+            oldFrom++;
+            newFrom++;
+        }
+        while (oldFrom < oldTo && newFrom < newTo && isSameToken(oldTokens, oldTo - 1, lineTokens, newTo - 1, offsetDelta)) {
+            oldTo--;
+            newTo--;
+        }
+        tokens = oldTokens.splice(newSource, oldFrom, oldTo, lineTokens, newFrom, newTo, offsetDelta);
+
+        SyntaxTree oldTree = syntaxTree;
+        if (oldTree == null)
+            return parse();
+        syntaxTree = null;
+        syntaxTree = reparse(oldTree, oldTokens, oldFrom, oldTo, (newTo - newFrom) - (oldTo - oldFrom));
+        return syntaxTree;
+    }
+
+    private static boolean isSameToken(TokenBuffer oldTokens, int oldIndex, TokenBuffer newTokens, int newIndex, int offsetDelta)
+    {
+        int oldStart = oldTokens.getStart(oldIndex);
+        int length = oldTokens.getEnd(oldIndex) - oldStart;
+        if (oldTokens.getType(oldIndex) != newTokens.getType(newIndex))
+            return false;
+        if (oldStart + offsetDelta != newTokens.getStart(newIndex) || newTokens.getEnd(newIndex) - newTokens.getStart(newIndex) != length)
+            return false;
+        return newTokens.getSource().regionMatches(newTokens.getStart(newIndex), oldTokens.getSource(), oldStart, length);
+    }
+
+    /**
+     * @param damageStart the first old (and new) raw token index that changed
+     * @param oldDamageEnd the old raw token index after the last one that changed
+     * @param tokenDelta how many more tokens there are now
+     */
+    private SyntaxTree reparse(SyntaxTree oldTree, TokenBuffer oldTokens, int damageStart, int oldDamageEnd, int tokenDelta)
+    {
+        int newDamageEnd = oldDamageEnd + tokenDelta;
+        SyntaxTree result = shiftedCopy(oldTree, oldDamageEnd, tokenDelta, 64 + 2 * (newDamageEnd - damageStart));
+        if (!hasSignificantToken(oldTokens, damageStart, oldDamageEnd) && !hasSignificantToken(tokens, damageStart, newDamageEnd)) {
+            // only spaces and comments changed, which the parser never sees
+            return result;
+        }
+
+        // the nodes from the root down to the innermost one whose bounding tokens didn't change
+        int[] path = new int[16];
+        int[] childIndexes = new int[16];
+        int pathSize = 1;
+        path[0] = oldTree.getRoot();
+        int firstDamagedSignificantToken = nextSignificantToken(oldTokens, damageStart);
+        while (true) {
+            int node = path[pathSize - 1];
+            int childIndex = findLastChildStartingBefore(oldTree, node, firstDamagedSignificantToken + 1);
+            if (childIndex == -1)
+                break;
+            int child = oldTree.getChild(node, childIndex);
+            if (!(previousSignificantToken(oldTokens, oldTree.getStartTokenIndex(child)) < damageStart && nextSignificantToken(oldTokens, oldTree.getEndTokenIndex(child)) >= oldDamageEnd))
+                break;
+            if (pathSize == path.length) {
+                path = Arrays.copyOf(path, pathSize * 2);
+                childIndexes = Arrays.copyOf(childIndexes, pathSize * 2);
+            }
+            path[pathSize] = child;
+            childIndexes[pathSize] = childIndex;
+            pathSize++;
+        }
+
+        // try statements and block contents from the inside out
+        for (int i = pathSize - 1; i > 0; i--) {
+            int node = path[i];
+            boolean isBlockContents = oldTree.getType(node) == NodeType.BLOCK_CONTENTS;
+            boolean isStatement = oldTree.getType(path[i - 1]) == NodeType.BLOCK_CONTENTS;
+            if (!isBlockContents && !isStatement)
+                continue;
+            int previousToken = previousSignificantToken(oldTokens, oldTree.getStartTokenIndex(node));
+            int followingToken = nextSignificantToken(oldTokens, oldTree.getEndTokenIndex(node));
+            int newNode;
+            try {
+                newNode = Parser.reparse(tokens, previousToken + 1, isBlockContents, followingToken + tokenDelta, result);
+            } catch (Parser.ParserError e) {
+                // maybe it's fine in a bigger context
+                newNode = -1;
+            }
+            if (newNode == -1)
+                continue;
+
+            result.setChild(path[i - 1], childIndexes[i], newNode);
+            int newStart = result.getStartTokenIndex(newNode);
+            int newEnd = result.getEndTokenIndex(newNode);
+            for (int j = 0; j < i; j++) {
+                // the ancestors might share their first or last token with the old node
+                int ancestor = path[j];
+                int oldStart = oldTree.getStartTokenIndex(ancestor);
+                int oldEnd = oldTree.getEndTokenIndex(ancestor);
+                result.setTokenIndexes(ancestor, oldStart > previousToken ? newStart : oldStart, oldEnd <= followingToken ? newEnd : oldEnd + tokenDelta);
+            }
+            result.setUnreachableSize(result.getUnreachableSize() + countNodes(oldTree, node));
+            if (result.getUnreachableSize() > result.size() / 2)
+                result = result.compact();
+            return result;
+        }
+        return new Parser(tokens).parse();
+    }
+
+    /** a copy of the old tree for the new tokens, where the token indexes after the damage are moved by tokenDelta */
+    private SyntaxTree shiftedCopy(SyntaxTree oldTree, int oldDamageEnd, int tokenDelta, int extraCapacity)
+    {
+        SyntaxTree result = new SyntaxTree(oldTree, tokens, extraCapacity);
+        if (tokenDelta == 0)
+            return result;
+        for (int node = 0; node < result.size(); node++) {
+            int start = result.getStartTokenIndex(node);
+            int end = result.getEndTokenIndex(node);
+            int newStart = start >= oldDamageEnd ? start + tokenDelta : start;
+            // a node that spans 0 tokens stays in front of the token after it
+            int newEnd = start == end ? newStart : end > oldDamageEnd ? end + tokenDelta : end;
+            result.setTokenIndexes(node, newStart, newEnd);
+        }
+        return result;
+    }
+
+    /** @return the index of the last child that starts before the raw token index, or -1 */
+    private static int findLastChildStartingBefore(SyntaxTree tree, int node, int tokenIndex)
+    {
+        // children are in source order
+        int low = 0;
+        int high = tree.getChildCount(node);
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (tree.getStartTokenIndex(tree.getChild(node, middle)) < tokenIndex)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low - 1;
+    }
+
+    private static int countNodes(SyntaxTree tree, int node)
+    {
+        int count = 1;
+        for (int i = 0; i < tree.getChildCount(node); i++)
+            count += countNodes(tree, tree.getChild(node, i));
+        return count;
+    }
+
+    private static boolean isSignificant(TokenBuffer tokens, int tokenIndex)
+    {
+        TokenType type = tokens.getType(tokenIndex);
+        return type != TokenType.SPACE && type != TokenType.NEWLINE && type != TokenType.COMMENT;
+    }
+    private static boolean hasSignificantToken(TokenBuffer tokens, int from, int to)
+    {
+        for (int i = from; i < to; i++)
+            if (isSignificant(tokens, i))
+                return true;
+        return false;
+    }
+    /** @return the raw index of the last significant token before tokenIndex, or -1 */
+    private static int previousSignificantToken(TokenBuffer tokens, int tokenIndex)
+    {
+        int i = tokenIndex - 1;
+        while (i >= 0 && !isSignificant(tokens, i))
+            i--;
+        return i;
+    }
+    /** @return the raw index of the first significant token at or after tokenIndex, or the number of tokens */
+    private static int nextSignificantToken(TokenBuffer tokens, int tokenIndex)
+    {
+        int i = tokenIndex;
+        while (i < tokens.size() && !isSignificant(tokens, i))
+            i++;
+        return i;
+    }
+}
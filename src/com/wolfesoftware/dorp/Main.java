@@ -1,26 +1,83 @@
 package com.wolfesoftware.dorp;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import com.wolfesoftware.dorp.Parser.SyntaxNode;
 import com.wolfesoftware.dorp.SemanticAnalyzer.CompilationUnit;
 
 public class Main
 {
     public static void main(String[] args) throws IOException
     {
-        String sourcePath = null;
+        if (args.length == 1 && args[0].equals("--server")) {
+            serve();
+            return;
+        }
+        run(args, System.out, false);
+    }
+
+    /**
+     * compiles one file per request from stdin, so the jvm only starts up and warms up once.
+     * a request is a line with the same arguments as the command line separated by tabs.
+     * the response is a line "status stdoutLength stderrLength"
+     * followed by that many bytes of what the command line would have written to stdout and stderr,
+     * and status is what it would have exited with.
+     * runs until stdin is closed.
+     */
+    private static void serve() throws IOException
+    {
+        BufferedReader requests = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
+        OutputStream responses = System.out;
+        String request;
+        while ((request = requests.readLine()) != null) {
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int status = 0;
+            try {
+                run(request.split("\t", -1), stdout, true);
+            } catch (Exception | StackOverflowError e) {
+                status = 1;
+                PrintStream printStream = new PrintStream(stderr, true, "UTF-8");
+                printStream.print("Exception in thread \"main\" ");
+                e.printStackTrace(printStream);
+            }
+            responses.write((status + " " + stdout.size() + " " + stderr.size() + "\n").getBytes("UTF-8"));
+            stdout.writeTo(responses);
+            stderr.writeTo(responses);
+            responses.flush();
+        }
+    }
+
+    private static void run(String[] args, OutputStream stdout, boolean isServer) throws IOException
+    {
+        ArrayList<String> sourcePaths = new ArrayList<>();
         String outputPath = null;
+        boolean emitBitcode = false;
         for (int i = 0; i < args.length; i++) {
             if (args[i].startsWith("-") && !args[i].equals("-")) {
                 switch (args[i]) {
@@ -29,64 +86,148 @@ public class Main
                         i++;
                         outputPath = args[i];
                         break;
+                    case "--emit=ll":
+                        emitBitcode = false;
+                        break;
+                    case "--emit=bc":
+                        emitBitcode = true;
+                        break;
                     default:
                         throw new RuntimeException("wtf");
                 }
             } else {
-                if (sourcePath != null)
-                    throw new RuntimeException("too many source files");
-                sourcePath = args[i];
+                sourcePaths.add(args[i]);
             }
         }
-        if (sourcePath == null)
+        if (sourcePaths.isEmpty())
             throw new RuntimeException("no source files");
         if (outputPath == null)
             outputPath = "-";
+        if (isServer && sourcePaths.contains("-"))
+            throw new RuntimeException("stdin is for requests in server mode");
+
+        compile(sourcePaths, outputPath, emitBitcode, stdout);
+    }
+
+    /**
+     * the files of a program are like one big file with their sources in order.
+     * they get read, tokenized and parsed in parallel, and then the syntax trees are concatenated.
+     * the output is LLVM text, or bitcode if emitBitcode.
+     */
+    private static void compile(List<String> sourcePaths, String outputPath, boolean emitBitcode, OutputStream stdout) throws IOException
+    {
+        SyntaxTree syntaxTree = sourcePaths.size() == 1 ? parse(readPath(sourcePaths.get(0))) : parseInParallel(sourcePaths);
+        CompilationUnit compilationUnit = new SemanticAnalyzer(syntaxTree).analyze();
+        boolean success = false;
+        try {
+            if (emitBitcode) {
+                try (OutputStream output = new BufferedOutputStream(openOutputPath(outputPath, stdout))) {
+                    new BitcodeWriter(compilationUnit).write(output);
+                }
+            } else {
+                try (Writer output = new BufferedWriter(new OutputStreamWriter(openOutputPath(outputPath, stdout)))) {
+                    new CodeGenerator(compilationUnit).generate(output);
+                }
+            }
+            success = true;
+        } finally {
+            // don't leave half a file behind that looks like output
+            if (!success && !outputPath.equals("-"))
+                new File(outputPath).delete();
+        }
+    }
 
-        compile(sourcePath, outputPath);
+    private static SyntaxTree parse(String contents)
+    {
+        TokenBuffer tokens = new Tokenizer(contents).tokenize();
+        return new Parser(tokens).parse();
     }
 
-    private static void compile(String sourcePath, String outputPath) throws IOException
+    /** for parsing files and generating functions in parallel */
+    private static ForkJoinPool workerPool = null;
+    static synchronized ForkJoinPool getWorkerPool()
     {
-        String contents = readPath(sourcePath);
-        List<Token> tokens = new Tokenizer(contents).tokenize();
-        SyntaxNode rootNode = new Parser(contents, tokens).parse();
-        CompilationUnit compilationUnit = new SemanticAnalyzer(rootNode).analyze();
-        String outputContents = new CodeGenerator(compilationUnit).generate();
-        writePath(outputPath, outputContents);
+        if (workerPool == null)
+            workerPool = new ForkJoinPool();
+        return workerPool;
     }
 
-    private static void writePath(String path, String contents) throws IOException
+    private static SyntaxTree parseInParallel(List<String> sourcePaths) throws IOException
     {
-        try (OutputStream output = openOutputPath(path)) {
-            output.write(contents.getBytes());
+        ForkJoinPool pool = getWorkerPool();
+        ArrayList<ForkJoinTask<SyntaxTree>> tasks = new ArrayList<>();
+        for (final String sourcePath : sourcePaths) {
+            tasks.add(pool.submit(new Callable<SyntaxTree>() {
+                @Override
+                public SyntaxTree call() throws IOException
+                {
+                    return parse(readPath(sourcePath));
+                }
+            }));
         }
+        SyntaxTree[] syntaxTrees = new SyntaxTree[sourcePaths.size()];
+        TokenBuffer[] tokenBuffers = new TokenBuffer[sourcePaths.size()];
+        for (int i = 0; i < syntaxTrees.length; i++) {
+            try {
+                syntaxTrees[i] = tasks.get(i).get();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                // the same errors as reading and parsing on this thread. the pool wraps checked exceptions.
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause())
+                    if (cause instanceof IOException)
+                        throw (IOException)cause;
+                if (e.getCause() instanceof RuntimeException)
+                    throw (RuntimeException)e.getCause();
+                throw new RuntimeException(e.getCause());
+            }
+            tokenBuffers[i] = syntaxTrees[i].getTokens();
+        }
+        return SyntaxTree.concatenate(syntaxTrees, TokenBuffer.concatenate(tokenBuffers));
     }
 
-    private static OutputStream openOutputPath(String path) throws IOException
+    private static OutputStream openOutputPath(String path, final OutputStream stdout) throws IOException
     {
-        if (path.equals("-"))
-            return System.out;
+        if (path.equals("-")) {
+            // closing stdout would end the server's responses
+            return new FilterOutputStream(stdout) {
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException
+                {
+                    out.write(buffer, offset, length);
+                }
+                @Override
+                public void close() throws IOException
+                {
+                    flush();
+                }
+            };
+        }
         return new FileOutputStream(new File(path));
     }
 
+    /** decodes the whole file at once as UTF-8, so characters can't get split between reads */
     public static String readPath(String path) throws IOException
     {
-        try (InputStream input = openInputPath(path)) {
-            StringBuilder result = new StringBuilder();
+        if (path.equals("-"))
+            return readStandardInput();
+        try (FileChannel channel = new FileInputStream(new File(path)).getChannel()) {
+            // the file's pages go straight to the decoder without being copied into a byte array first
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+    }
+    private static String readStandardInput() throws IOException
+    {
+        try (InputStream input = System.in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
             byte[] buffer = new byte[0x1000];
             int count;
             while ((count = input.read(buffer)) != -1)
-                result.append(new String(buffer, 0, count));
-            return result.toString();
+                bytes.write(buffer, 0, count);
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
         }
     }
-    private static InputStream openInputPath(String path) throws IOException
-    {
-        if (path.equals("-"))
-            return System.in;
-        return new FileInputStream(new File(path));
-    }
 
     public static <T> String join(T[] array, String delimiter)
     {
@@ -1,488 +1,323 @@
 package com.wolfesoftware.dorp;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map.Entry;
+import java.util.Arrays;
 
 import com.wolfesoftware.dorp.Tokenizer.TokenType;
 
+/**
+ * recursive descent parser.
+ * the parse method for each rule is generated from dorp.grammar by ParserGenerator when building with make.
+ */
 public class Parser
 {
-    private enum RuleName
+    // actions named in dorp.grammar
+    private int makeDo(int node)
     {
-        BLOCK_CONTENTS, //
-        STATEMENT, //
-        DEFINITION, //
-        EXPRESSION, //
-        ASSIGNMENT, //
-        DO, //
-        SUM, //
-        TERM, //
-        TRAILABLE, //
-        ATOM, //
-        TRAILER, //
-        PARENS, //
-        EXPRESSION_LIST, //
-        BLOCK, //
-        NUMBER, //
-        IDENTIFIER, //
-        VARIABLE_DECLARATION, //
-        IF_THEN;
+        int doOperator = child(node, 0);
+        int block = child(node, 1);
+        int emptyArgumentList = makeNode(NodeType.ARGUMENT_LIST, start(doOperator), end(doOperator));
+        return makeNode(NodeType.CALL, start(node), end(node), block, emptyArgumentList);
     }
-
-    private final HashMap<RuleName, ParserRule> nameToRule = new HashMap<>();
-    {
-        nameToRule.put(RuleName.BLOCK_CONTENTS, listWithOptionalElements(NodeType.BLOCK_CONTENTS, RuleName.STATEMENT, ";"));
-        nameToRule.put(RuleName.STATEMENT, new ParserRule(any(rule(RuleName.DEFINITION), rule(RuleName.VARIABLE_DECLARATION), rule(RuleName.EXPRESSION))));
-        nameToRule.put(RuleName.DEFINITION, new ParserRule(sequence(operator("def"), rule(RuleName.ASSIGNMENT))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // discard the "def" operator
-                node.children = new SyntaxNode[] { node.children[1] };
-                node.type = NodeType.DEFINITION;
-                return node;
-            }
-        });
-        nameToRule.put(RuleName.VARIABLE_DECLARATION, new ParserRule(sequence(operator("var"), rule(RuleName.ASSIGNMENT))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // discard the "var" operator
-                node.children = new SyntaxNode[] { node.children[1] };
-                node.type = NodeType.VARIABLE_DECLARATION;
-                return node;
-            }
-        });
-        nameToRule.put(RuleName.EXPRESSION, new ParserRule(any(rule(RuleName.DO), rule(RuleName.ASSIGNMENT))));
-        nameToRule.put(RuleName.DO, new ParserRule(sequence(operator("do"), rule(RuleName.EXPRESSION))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                SyntaxNode doOperator = node.children[0];
-                SyntaxNode block = node.children[1];
-                SyntaxNode emptyArgumentList = new SyntaxNode(doOperator.startTokenIndex, doOperator.endTokenIndex, NodeType.ARGUMENT_LIST, new SyntaxNode[0]);
-                return new SyntaxNode(node.startTokenIndex, node.endTokenIndex, NodeType.CALL, new SyntaxNode[] { block, emptyArgumentList });
-            }
-        });
-        // operator precedence
-        nameToRule.put(RuleName.ASSIGNMENT, new ParserRule(sequence(rule(RuleName.SUM), repeat(sequence(operator("="), rule(RuleName.SUM))))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // sum ( "=" sum )*
-                SyntaxNode[] addendums = node.children[1].children;
-                SyntaxNode[] elements = new SyntaxNode[1 + addendums.length];
-                elements[0] = node.children[0];
-                for (int i = 0; i < addendums.length; i++) {
-                    // "=" sum
-                    elements[i + 1] = addendums[i].children[1];
-                }
-                // right-to-left
-                Main.reverse(elements);
-                SyntaxNode right = elements[0];
-                for (int i = 1; i < elements.length; i++) {
-                    SyntaxNode left = elements[i];
-                    // some assignment constructs are really function declarations
-                    switch (left.type) {
-                        case PARENS: {
-                            // (a, b) = {} becomes {}
-                            SyntaxNode argumentList = left.children[0];
-                            if (right.type != NodeType.BLOCK)
-                                throw new ParserError(argumentList.endTokenIndex);
-                            BlockNode block = (BlockNode)right;
-                            if (block.argumentDeclarations != null)
-                                throw new ParserError(argumentList.endTokenIndex);
-                            argumentList.type = NodeType.ARGUMENT_LIST;
-                            block.argumentDeclarations = argumentList;
-                            // no real assignment here
-                            right = block;
-                            continue;
-                        }
-                        case CALL: {
-                            // f(a, b) = {} becomes f = {}
-                            SyntaxNode functionName = left.children[0];
-                            SyntaxNode argumentList = left.children[1];
-                            if (right.type != NodeType.BLOCK)
-                                throw new ParserError(argumentList.endTokenIndex);
-                            BlockNode block = (BlockNode)right;
-                            if (block.argumentDeclarations != null)
-                                throw new ParserError(argumentList.endTokenIndex);
-                            block.argumentDeclarations = argumentList;
-                            left = functionName;
-                            break;
-                        }
-                    }
-                    right = new SyntaxNode(left.startTokenIndex, right.endTokenIndex, NodeType.ASSIGNMENT, new SyntaxNode[] { left, right });
-                }
-                return right;
-            }
-        });
-        nameToRule.put(RuleName.SUM, operatorChain(RuleName.TERM, //
-                new String[] { "+", "-" }, //
-                new NodeType[] { NodeType.PLUS, NodeType.MINUS }));
-        nameToRule.put(RuleName.TERM, operatorChain(RuleName.TRAILABLE, //
-                new String[] { "*", "/" }, //
-                new NodeType[] { NodeType.TIMES, NodeType.DIVIDED_BY }));
-        nameToRule.put(RuleName.TRAILABLE, new ParserRule(sequence(rule(RuleName.ATOM), repeat(rule(RuleName.TRAILER)))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // atom ( trailer )*
-                SyntaxNode base = node.children[0];
-                for (SyntaxNode trailer : node.children[1].children) {
-                    switch (trailer.type) {
-                        case PARENS: {
-                            // translate to a function call
-                            SyntaxNode argumentList = trailer.children[0];
-                            argumentList.type = NodeType.ARGUMENT_LIST;
-                            base = new SyntaxNode(base.startTokenIndex, trailer.endTokenIndex, NodeType.CALL, new SyntaxNode[] { base, argumentList });
-                            break;
-                        }
-                        default:
-                            throw null;
-                    }
-                }
-                return base;
-            }
-        });
-        nameToRule.put(RuleName.TRAILER, new ParserRule(rule(RuleName.PARENS)));
-        nameToRule.put(RuleName.EXPRESSION_LIST, listWithOptionalElements(NodeType.EXPRESSION_LIST, RuleName.EXPRESSION, ","));
-        // terminals and groups
-        nameToRule.put(RuleName.ATOM, new ParserRule(any( //
-                rule(RuleName.BLOCK), //
-                rule(RuleName.IF_THEN), //
-                rule(RuleName.PARENS), //
-                rule(RuleName.NUMBER), //
-                rule(RuleName.IDENTIFIER))));
-        nameToRule.put(RuleName.PARENS, new ParserRule(sequence(operator("("), rule(RuleName.EXPRESSION_LIST), operator(")"))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // discard "(" and ")" operators
-                node.children = new SyntaxNode[] { node.children[1] };
-                node.type = NodeType.PARENS;
-                return node;
-            }
-        });
-        nameToRule.put(RuleName.IF_THEN, new ParserRule(sequence( //
-                operator("if"), rule(RuleName.EXPRESSION), //
-                operator("then"), rule(RuleName.EXPRESSION), //
-                maybe(sequence(operator("else"), rule(RuleName.EXPRESSION))))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                SyntaxNode condition = node.children[1];
-                SyntaxNode thenValue = node.children[3];
-                SyntaxNode elseClause = node.children[4];
-                if (elseClause.children != null) {
-                    SyntaxNode elseValue = elseClause.children[1];
-                    node.children = new SyntaxNode[] { condition, thenValue, elseValue };
-                } else {
-                    node.children = new SyntaxNode[] { condition, thenValue };
-                }
-                node.type = NodeType.IF_THEN;
-                return node;
-            }
-        });
-        nameToRule.put(RuleName.BLOCK, new ParserRule(sequence(operator("{"), rule(RuleName.BLOCK_CONTENTS), operator("}"))) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                return new BlockNode(node);
-            }
-        });
-        nameToRule.put(RuleName.NUMBER, new ParserRule(token(TokenType.NUMBER)) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                node.type = NodeType.NUMBER;
-                return node;
-            }
-        });
-        nameToRule.put(RuleName.IDENTIFIER, new ParserRule(token(TokenType.IDENTIFIER)) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                node.type = NodeType.IDENTIFIER;
-                return node;
-            }
-        });
+    private int makeIfThen(int node)
+    {
+        int condition = child(node, 1);
+        int thenValue = child(node, 3);
+        int elseClause = child(node, 4);
+        if (start(elseClause) < end(elseClause)) {
+            int elseValue = child(elseClause, 1);
+            return makeNode(NodeType.IF_THEN, start(node), end(node), condition, thenValue, elseValue);
+        }
+        return makeNode(NodeType.IF_THEN, start(node), end(node), condition, thenValue);
     }
 
-    private class ParserRule
+    /** leaf pattern that matches a single token, optionally with exact text */
+    private int matchToken(int tokenIndex, TokenType tokenType, String exactText, boolean throwFailure)
     {
-        public final ParserRuleMatcher matcher;
-        public ParserRule(ParserRuleMatcher matcher)
-        {
-            this.matcher = matcher;
+        if (!isToken(tokenIndex, tokenType, exactText)) {
+            if (throwFailure)
+                throw new ParserError(tokenIndex);
+            return -1;
         }
-        public SyntaxNode postProcess(SyntaxNode node)
-        {
-            return node;
-        }
-        @Override
-        public String toString()
+        return makeNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex + 1);
+    }
+    private boolean isToken(int tokenIndex, TokenType tokenType, String exactText)
+    {
+        if (tokenIndexHighWaterMark < tokenIndex)
+            tokenIndexHighWaterMark = tokenIndex;
+        if (!hasSignificantToken(tokenIndex))
+            return false;
+        int rawTokenIndex = significantTokens[tokenIndex];
+        if (tokens.getType(rawTokenIndex) != tokenType)
+            return false;
+        if (exactText != null && !tokens.textEquals(rawTokenIndex, exactText))
+            return false;
+        return true;
+    }
+
+    private static class BinaryOperator
+    {
+        public final String text;
+        public final NodeType type;
+        /** higher binds tighter */
+        public final int precedence;
+        public final boolean rightToLeft;
+        public BinaryOperator(String text, NodeType type, int precedence, boolean rightToLeft)
         {
-            for (Entry<RuleName, ParserRule> entry : nameToRule.entrySet())
-                if (entry.getValue() == this)
-                    return entry.getKey().name();
-            return super.toString();
+            this.text = text;
+            this.type = type;
+            this.precedence = precedence;
+            this.rightToLeft = rightToLeft;
         }
     }
+    private static final BinaryOperator[] binaryOperators = { //
+            new BinaryOperator("=", NodeType.ASSIGNMENT, 1, true), //
+            new BinaryOperator("+", NodeType.PLUS, 2, false), //
+            new BinaryOperator("-", NodeType.MINUS, 2, false), //
+            new BinaryOperator("*", NodeType.TIMES, 3, false), //
+            new BinaryOperator("/", NodeType.DIVIDED_BY, 3, false), //
+    };
 
-    private static abstract class ParserRuleMatcher
+    private int matchOperation(int tokenIndex, boolean throwFailure)
     {
-        public abstract SyntaxNode match(int tokenIndex, boolean throwFailure);
+        return parseOperation(tokenIndex, 0, throwFailure);
     }
-
-    private ParserRuleMatcher operator(final String text)
-    {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                tokenIndex = findToken(tokenIndex, TokenType.OPERATOR, text);
-                if (tokenIndex == -1) {
-                    if (throwFailure)
-                        throw new ParserError(tokenIndex);
-                    return null;
-                }
-                return new SyntaxNode(tokenIndex, tokenIndex + 1);
-            }
-        };
-    }
-    /** leaf pattern that matches a single token */
-    private ParserRuleMatcher token(final TokenType tokenType)
-    {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                tokenIndex = findToken(tokenIndex, tokenType, null);
-                if (tokenIndex == -1) {
-                    if (throwFailure)
-                        throw new ParserError(tokenIndex);
-                    return null;
-                }
-                return new SyntaxNode(tokenIndex, tokenIndex + 1);
+    /**
+     * precedence climbing.
+     * parses a chain of binary operators that bind at least as tightly as minPrecedence.
+     */
+    private int parseOperation(int tokenIndex, int minPrecedence, boolean throwFailure)
+    {
+        int left = parseTrailable(tokenIndex, throwFailure);
+        if (left == -1)
+            return -1;
+        while (true) {
+            BinaryOperator operator = findBinaryOperator(end(left));
+            if (operator == null || operator.precedence < minPrecedence)
+                return left;
+            int rightMinPrecedence = operator.rightToLeft ? operator.precedence : operator.precedence + 1;
+            int right = parseOperation(end(left) + 1, rightMinPrecedence, false);
+            if (right == -1) {
+                // leave the operator for someone else to complain about
+                return left;
             }
-        };
+            if (operator.type == NodeType.ASSIGNMENT)
+                left = makeAssignment(left, right);
+            else
+                left = makeNode(operator.type, start(left), end(right), left, right);
+        }
     }
-    private int findToken(int tokenIndex, TokenType tokenType, String exactText)
+    private BinaryOperator findBinaryOperator(int tokenIndex)
     {
-        while (tokenIndex < tokens.size()) {
-            if (tokenIndexHighWaterMark < tokenIndex)
-                tokenIndexHighWaterMark = tokenIndex;
-            Token token = tokens.get(tokenIndex);
-            switch (token.type) {
-                case SPACE:
-                case NEWLINE:
-                case COMMENT:
-                    tokenIndex += 1;
-                    continue;
+        for (BinaryOperator operator : binaryOperators)
+            if (isToken(tokenIndex, TokenType.OPERATOR, operator.text))
+                return operator;
+        return null;
+    }
+    private int makeAssignment(int left, int right)
+    {
+        // some assignment constructs are really function declarations
+        switch (tree.getType(left)) {
+            case PARENS: {
+                // (a, b) = {} becomes {}
+                int expressionList = child(left, 0);
+                if (tree.getType(right) != NodeType.BLOCK)
+                    throw new ParserError(end(expressionList));
+                if (tree.getBlockArgumentDeclarations(right) != -1)
+                    throw new ParserError(end(expressionList));
+                int argumentList = copyNode(NodeType.ARGUMENT_LIST, expressionList);
+                // no real assignment here. the block is the whole statement, which the IncrementalParser relies on.
+                return makeNode(NodeType.BLOCK, start(left), end(right), argumentList, tree.getBlockContents(right));
             }
-            if (token.type != tokenType)
-                break;
-            if (exactText != null && !token.text.equals(exactText))
+            case CALL: {
+                // f(a, b) = {} becomes f = {}
+                int functionName = child(left, 0);
+                int argumentList = child(left, 1);
+                if (tree.getType(right) != NodeType.BLOCK)
+                    throw new ParserError(end(argumentList));
+                if (tree.getBlockArgumentDeclarations(right) != -1)
+                    throw new ParserError(end(argumentList));
+                right = makeNode(NodeType.BLOCK, start(right), end(right), argumentList, tree.getBlockContents(right));
+                left = functionName;
                 break;
-            return tokenIndex;
+            }
         }
-        return -1;
+        return makeNode(NodeType.ASSIGNMENT, start(left), end(right), left, right);
     }
-    /** a matcher (as part of a rule) that matches another rule */
-    private ParserRuleMatcher rule(final RuleName ruleName)
+    /** atom ( parens )* */
+    private int parseTrailable(int tokenIndex, boolean throwFailure)
     {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                return parseNode(ruleName, tokenIndex, throwFailure);
-            }
-        };
-    }
-    /** like regex a* */
-    private ParserRuleMatcher repeat(final ParserRuleMatcher matcher)
-    {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                int startTokenIndex = tokenIndex;
-                ArrayList<SyntaxNode> children = new ArrayList<>();
-                while (true) {
-                    SyntaxNode child = matcher.match(tokenIndex, false);
-                    if (child == null)
-                        break;
-                    children.add(child);
-                    tokenIndex = child.endTokenIndex;
-                }
-                return new SyntaxNode(startTokenIndex, tokenIndex, children.toArray(new SyntaxNode[0]));
-            }
-        };
-    }
-    /** like regex abc */
-    private ParserRuleMatcher sequence(final ParserRuleMatcher... subMatchers)
-    {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                int startTokenIndex = tokenIndex;
-                SyntaxNode[] children = new SyntaxNode[subMatchers.length];
-                for (int i = 0; i < subMatchers.length; i++) {
-                    children[i] = subMatchers[i].match(tokenIndex, throwFailure);
-                    if (children[i] == null) {
-                        // polite failure of any children is a polite failure of the whole
-                        return null;
-                    }
-                    tokenIndex = children[i].endTokenIndex;
-                }
-                return new SyntaxNode(startTokenIndex, tokenIndex, children);
-            }
-        };
-    }
-    /** like regex a? */
-    private ParserRuleMatcher maybe(final ParserRuleMatcher matcher)
-    {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                SyntaxNode result = matcher.match(tokenIndex, false);
-                if (result != null)
-                    return result;
-                // dummy syntax node that spans 0 tokens
-                return new SyntaxNode(tokenIndex, tokenIndex);
-            }
-        };
-    }
-    /** like regex a|b|c */
-    private ParserRuleMatcher any(final ParserRuleMatcher... subMatchers)
-    {
-        return new ParserRuleMatcher() {
-            @Override
-            public SyntaxNode match(int tokenIndex, boolean throwFailure)
-            {
-                for (ParserRuleMatcher subMatcher : subMatchers) {
-                    SyntaxNode result = subMatcher.match(tokenIndex, false);
-                    if (result != null)
-                        return result;
-                }
-                if (throwFailure)
-                    throw new ParserError(tokenIndex);
-                return null;
-            }
-        };
+        int base = parseAtom(tokenIndex, throwFailure);
+        if (base == -1)
+            return -1;
+        while (true) {
+            int parens = parseParens(end(base), false);
+            if (parens == -1)
+                return base;
+            // translate to a function call
+            int argumentList = copyNode(NodeType.ARGUMENT_LIST, child(parens, 0));
+            base = makeNode(NodeType.CALL, start(base), end(parens), base, argumentList);
+        }
     }
 
-    private ParserRule listWithOptionalElements(final NodeType listType, RuleName elementTypeName, String separator)
-    {
-        // allow empty lists, missing elements, and trailing separators
-        ParserRuleMatcher matcher = maybe(sequence(rule(elementTypeName), repeat(sequence(operator(separator), maybe(rule(elementTypeName))))));
-        return new ParserRule(matcher) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // pull the simple sequence of elements out of the complex pattern
-                ArrayList<SyntaxNode> children = new ArrayList<>();
-                // ( [a-c] ( ; [a-c]? )* )?
-                if (node.children != null) {
-                    // [a-c] ( ; [a-c]? )*
-                    // node is a sequence
-                    // [a-c]
-                    SyntaxNode firstElement = node.children[0];
-                    children.add(firstElement);
-                    // ( ; [a-c]? )*
-                    SyntaxNode[] otherElements = node.children[1].children;
-                    // otherElements is a repeat
-                    for (SyntaxNode elementNode : otherElements) {
-                        // ; [a-c]?
-                        // elementNode is a sequence
-                        SyntaxNode element = elementNode.children[1];
-                        // [a-c]?
-                        if (element.startTokenIndex < element.endTokenIndex) {
-                            // [a-c]
-                            children.add(element);
-                        }
-                    }
-                }
-                node.children = children.toArray(new SyntaxNode[0]);
-                node.type = listType;
-                return node;
-            }
-        };
+    private int start(int node)
+    {
+        return tree.getStartTokenIndex(node);
     }
-
-    private ParserRule operatorChain(RuleName elementRuleName, final String[] operators, final NodeType[] typeOverrides)
-    {
-        ParserRuleMatcher[] operatorMatchers = new ParserRuleMatcher[operators.length];
-        for (int i = 0; i < operators.length; i++)
-            operatorMatchers[i] = operator(operators[i]);
-        ParserRuleMatcher matcher = sequence(rule(elementRuleName), repeat(sequence(any(operatorMatchers), rule(elementRuleName))));
-        return new ParserRule(matcher) {
-            @Override
-            public SyntaxNode postProcess(SyntaxNode node)
-            {
-                // from the complex parse tree pattern, extract a binary syntax tree of operations.
-                // a ( [+-] a )*
-                SyntaxNode left = node.children[0];
-                for (SyntaxNode addendum : node.children[1].children) {
-                    // [+-] a
-                    String operatorText = addendum.children[0].getSimpleText();
-                    NodeType operatorType = null;
-                    for (int i = 0; i < operators.length; i++) {
-                        if (operators[i].equals(operatorText)) {
-                            operatorType = typeOverrides[i];
-                            break;
-                        }
-                    }
-                    SyntaxNode right = addendum.children[1];
-                    SyntaxNode operation = new SyntaxNode(left.startTokenIndex, right.endTokenIndex, new SyntaxNode[] { left, right });
-                    operation.type = operatorType;
-                    left = operation;
-                }
-                return left;
-            }
-        };
+    private int end(int node)
+    {
+        return tree.getEndTokenIndex(node);
+    }
+    private int child(int node, int childIndex)
+    {
+        return tree.getChild(node, childIndex);
+    }
+    private int makeNode(NodeType type, int startTokenIndex, int endTokenIndex)
+    {
+        return tree.addNode(type, startTokenIndex, endTokenIndex, 0);
+    }
+    private int makeNode(NodeType type, int startTokenIndex, int endTokenIndex, int child)
+    {
+        tree.pushPending(child);
+        return tree.addNode(type, startTokenIndex, endTokenIndex, 1);
+    }
+    private int makeNode(NodeType type, int startTokenIndex, int endTokenIndex, int child0, int child1)
+    {
+        tree.pushPending(child0);
+        tree.pushPending(child1);
+        return tree.addNode(type, startTokenIndex, endTokenIndex, 2);
+    }
+    private int makeNode(NodeType type, int startTokenIndex, int endTokenIndex, int child0, int child1, int child2)
+    {
+        tree.pushPending(child0);
+        tree.pushPending(child1);
+        tree.pushPending(child2);
+        return tree.addNode(type, startTokenIndex, endTokenIndex, 3);
+    }
+    /** same span and children with a different type */
+    private int copyNode(NodeType type, int node)
+    {
+        int childCount = tree.getChildCount(node);
+        for (int i = 0; i < childCount; i++)
+            tree.pushPending(child(node, i));
+        return tree.addNode(type, start(node), end(node), childCount);
     }
 
     public class ParserError extends RuntimeException
     {
         public ParserError(int tokenIndex)
         {
-            super(messageForTokenIndex(tokenIndex));
+            super(messageForTokenIndex(getRawTokenIndex(tokenIndex)));
         }
     }
 
-    private final String contents;
-    private final List<Token> tokens;
+    /** don't remember anything. backtracking parses the same rule at the same position again. */
+    public static final int MEMO_NONE = 0;
+    /** remember every rule result at every position. parse time is linear, but memory is proportional to rules times tokens. */
+    public static final int MEMO_UNBOUNDED = -1;
+
+    private final TokenBuffer tokens;
+    /**
+     * the raw indexes of the tokens that aren't spaces, newlines, or comments, found as the parser gets to them.
+     * the parser only ever sees these, so every token index in {@link #tree} is an index into this array.
+     */
+    private int[] significantTokens;
+    private int significantTokenCount = 0;
+    /** where {@link #findNextSignificantToken()} continues looking */
+    private int nextRawTokenIndex;
+    /**
+     * scratch space for every node built while parsing, including intermediate nodes and abandoned alternatives.
+     * {@link #parse()} copies out just the finished tree.
+     */
+    private final SyntaxTree tree;
     private int tokenIndexHighWaterMark = 0;
-    public Parser(String contents, List<Token> tokens)
+    private final MemoTable memo;
+    public Parser(TokenBuffer tokens)
+    {
+        // the current grammar rarely revisits a position, so the bookkeeping usually costs more than it saves.
+        this(tokens, MEMO_NONE);
+    }
+    /**
+     * @param memoCapacity {@link #MEMO_NONE}, {@link #MEMO_UNBOUNDED},
+     *            or the maximum number of rule results to remember, where newer results evict older ones.
+     */
+    public Parser(TokenBuffer tokens, int memoCapacity)
+    {
+        this(tokens, 0, tokens.size(), memoCapacity);
+    }
+    /** @param expectedTokenCount roughly how many raw tokens will be parsed */
+    private Parser(TokenBuffer tokens, int firstRawTokenIndex, int expectedTokenCount, int memoCapacity)
     {
-        this.contents = contents;
         this.tokens = tokens;
+        nextRawTokenIndex = firstRawTokenIndex;
+        significantTokens = new int[Math.max(16, expectedTokenCount / 2)];
+        // intermediate nodes outnumber finished ones, so leave some room
+        tree = new SyntaxTree(tokens, expectedTokenCount * 2);
+        if (memoCapacity == MEMO_NONE) {
+            memo = null;
+            return;
+        }
+        // the table size depends on how many tokens there are
+        while (findNextSignificantToken()) {
+        }
+        int unboundedCapacity = ruleCount * (significantTokenCount + 1);
+        if (memoCapacity == MEMO_UNBOUNDED || memoCapacity >= unboundedCapacity)
+            memo = new MemoTable(unboundedCapacity, true);
+        else if (memoCapacity > 0)
+            memo = new MemoTable(memoCapacity, false);
+        else
+            throw new IllegalArgumentException("memoCapacity: " + memoCapacity);
+    }
+
+    private boolean hasSignificantToken(int tokenIndex)
+    {
+        while (tokenIndex >= significantTokenCount)
+            if (!findNextSignificantToken())
+                return false;
+        return true;
+    }
+    private boolean findNextSignificantToken()
+    {
+        for (; nextRawTokenIndex < tokens.size(); nextRawTokenIndex++) {
+            switch (tokens.getType(nextRawTokenIndex)) {
+                case SPACE:
+                case NEWLINE:
+                case COMMENT:
+                    continue;
+                default:
+                    if (significantTokenCount == significantTokens.length)
+                        significantTokens = Arrays.copyOf(significantTokens, significantTokenCount * 2);
+                    significantTokens[significantTokenCount++] = nextRawTokenIndex++;
+                    return true;
+            }
+        }
+        return false;
+    }
+    /** maps an index into {@link #significantTokens} back to an index into {@link #tokens} */
+    private int getRawTokenIndex(int tokenIndex)
+    {
+        if (hasSignificantToken(tokenIndex))
+            return significantTokens[tokenIndex];
+        // past the end
+        return tokens.size();
     }
 
     private String messageForTokenIndex(int tokenIndex)
     {
         int lineNumber = 1;
         int lineStartOffset = 0;
-        int lineEndOffset = 0;
+        int lineEndOffset = tokens.getSource().length();
         int offsetIntoLine = -1;
         for (int i = 0; i < tokens.size(); i++) {
-            Token token = tokens.get(i);
-            if (token.type == TokenType.NEWLINE) {
+            if (tokens.getType(i) == TokenType.NEWLINE) {
                 if (offsetIntoLine != -1) {
-                    lineEndOffset = token.start;
+                    lineEndOffset = tokens.getStart(i);
                     break;
                 }
                 lineNumber += 1;
-                lineStartOffset = token.end;
+                lineStartOffset = tokens.getEnd(i);
             }
             if (i == tokenIndex) {
-                offsetIntoLine = token.start - lineStartOffset;
+                offsetIntoLine = tokens.getStart(i) - lineStartOffset;
             }
         }
         if (offsetIntoLine == -1) {
@@ -490,124 +325,583 @@ public class Parser
         }
         StringBuilder result = new StringBuilder();
         result.append("on line ").append(lineNumber).append('\n');
-        result.append(contents.substring(lineStartOffset, lineEndOffset)).append("\n");
+        result.append(tokens.getSource().substring(lineStartOffset, lineEndOffset)).append("\n");
         for (int i = 0; i < offsetIntoLine; i++)
             result.append(' ');
         result.append('^');
         return result.toString();
     }
-    public SyntaxNode parse()
+    public SyntaxTree parse()
     {
-        SyntaxNode rootNode = parseNode(RuleName.BLOCK_CONTENTS, 0, true);
-        if (tokenIndexHighWaterMark < tokens.size() - 1)
+        int rootNode = parseBlockContents(0, true);
+        if (hasSignificantToken(end(rootNode)))
             throw new ParserError(tokenIndexHighWaterMark);
-        return rootNode;
+        SyntaxTree result = new SyntaxTree(tokens, countNodes(rootNode));
+        result.setRoot(copyInto(result, rootNode));
+        return result;
+    }
+    /**
+     * parses just one statement, or the contents of one block, starting at a raw token index,
+     * and copies it to the end of result. see {@link IncrementalParser}.
+     * @param followingRawTokenIndex where the next significant token after the node must be
+     * @return the copied node, or -1 if the rule doesn't match there or doesn't end in the right place
+     */
+    static int reparse(TokenBuffer tokens, int firstRawTokenIndex, boolean blockContents, int followingRawTokenIndex, SyntaxTree result)
+    {
+        Parser parser = new Parser(tokens, firstRawTokenIndex, followingRawTokenIndex - firstRawTokenIndex, MEMO_NONE);
+        int node = blockContents ? parser.parseBlockContents(0, false) : parser.parseStatement(0, false);
+        if (node == -1 || parser.getRawTokenIndex(parser.end(node)) != followingRawTokenIndex)
+            return -1;
+        return parser.copyInto(result, node);
+    }
+    private int countNodes(int node)
+    {
+        int count = 1;
+        for (int i = 0; i < tree.getChildCount(node); i++)
+            count += countNodes(child(node, i));
+        return count;
+    }
+    /** copies a finished node and everything under it, translating token indexes into raw token indexes */
+    private int copyInto(SyntaxTree result, int node)
+    {
+        int childCount = tree.getChildCount(node);
+        for (int i = 0; i < childCount; i++)
+            result.pushPending(copyInto(result, child(node, i)));
+        int startTokenIndex = getRawTokenIndex(start(node));
+        int endTokenIndex = start(node) < end(node) ? significantTokens[end(node) - 1] + 1 : startTokenIndex;
+        return result.addNode(tree.getType(node), startTokenIndex, endTokenIndex, childCount);
     }
 
-    private SyntaxNode parseNode(RuleName ruleName, int tokenIndex, boolean throwFailure)
+    /** @return the memoized result, or {@link MemoTable#NOT_MEMOIZED} */
+    private int recall(int memoKey, int tokenIndex, boolean throwFailure)
     {
-        ParserRule rule = nameToRule.get(ruleName);
-        SyntaxNode node = rule.matcher.match(tokenIndex, throwFailure);
-        if (node != null)
-            node = rule.postProcess(node);
+        if (memo == null)
+            return MemoTable.NOT_MEMOIZED;
+        int node = memo.get(memoKey);
+        if (node == -1 && throwFailure)
+            throw new ParserError(tokenIndex);
+        return node;
+    }
+    private int remember(int memoKey, int node)
+    {
+        if (memo != null)
+            memo.put(memoKey, node);
         return node;
     }
 
-    public enum NodeType
+    // begin code generated from dorp.grammar by ParserGenerator. don't edit by hand.
+    private static final int ruleCount = 14;
+
+    /** BLOCK_CONTENTS = list(STATEMENT, ";") -> BLOCK_CONTENTS */
+    private int parseBlockContents(int tokenIndex, boolean throwFailure)
     {
-        /** this value should always be replaced in a {@link ParserRule#postProcess(SyntaxNode)} */
-        PARSER_INTERMEDIATE, //
-        DEFINITION, //
-        CALL, //
-        ASSIGNMENT, //
-        PLUS, //
-        MINUS, //
-        TIMES, //
-        DIVIDED_BY, //
-        ARGUMENT_LIST, //
-        PARENS, //
-        BLOCK_CONTENTS, //
-        EXPRESSION_LIST, //
-        BLOCK, //
-        NUMBER, //
-        IDENTIFIER, //
-        VARIABLE_DECLARATION, //
-        IF_THEN;
+        int memoKey = tokenIndex * ruleCount + 0;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int tokenIndex0 = tokenIndex;
+        int childCount0 = 0;
+        int node1 = parseStatement(tokenIndex0, false);
+        if (node1 != -1) {
+            tree.pushPending(node1);
+            childCount0++;
+            tokenIndex0 = end(node1);
+            while (isToken(tokenIndex0, TokenType.OPERATOR, ";")) {
+                tokenIndex0++;
+                int node2 = parseStatement(tokenIndex0, false);
+                if (node2 != -1) {
+                    tree.pushPending(node2);
+                    childCount0++;
+                    tokenIndex0 = end(node2);
+                }
+            }
+        }
+        int node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, childCount0);
+        tree.setType(node0, NodeType.BLOCK_CONTENTS);
+        return remember(memoKey, node0);
     }
 
-    public class SyntaxNode
+    /** STATEMENT = DEFINITION | VARIABLE_DECLARATION | EXPRESSION */
+    private int parseStatement(int tokenIndex, boolean throwFailure)
     {
-        public final int startTokenIndex;
-        public final int endTokenIndex;
-        public SyntaxNode[] children;
-        public NodeType type;
-        public SyntaxNode(int startTokenIndex, int endTokenIndex)
-        {
-            this(startTokenIndex, endTokenIndex, null);
+        int memoKey = tokenIndex * ruleCount + 1;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0;
+        any0: {
+            int node1 = parseDefinition(tokenIndex, false);
+            if (node1 != -1) {
+                node0 = node1;
+                break any0;
+            }
+            int node2 = parseVariableDeclaration(tokenIndex, false);
+            if (node2 != -1) {
+                node0 = node2;
+                break any0;
+            }
+            int node3 = parseExpression(tokenIndex, false);
+            if (node3 != -1) {
+                node0 = node3;
+                break any0;
+            }
+            if (throwFailure)
+                throw new ParserError(tokenIndex);
+            node0 = -1;
         }
-        public SyntaxNode(int startTokenIndex, int endTokenIndex, SyntaxNode[] children)
-        {
-            this(startTokenIndex, endTokenIndex, NodeType.PARSER_INTERMEDIATE, children);
+        return remember(memoKey, node0);
+    }
+
+    /** DEFINITION = "def" OPERATION -> DEFINITION(1) */
+    private int parseDefinition(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 2;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = -1;
+        sequence0: {
+            int pendingSize0 = tree.getPendingSize();
+            int tokenIndex0 = tokenIndex;
+            int node1 = matchToken(tokenIndex0, TokenType.OPERATOR, "def", throwFailure);
+            if (node1 == -1)
+                break sequence0;
+            tree.pushPending(node1);
+            tokenIndex0 = end(node1);
+            int node2 = parseOperation(tokenIndex0, throwFailure);
+            if (node2 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
+            }
+            tree.pushPending(node2);
+            tokenIndex0 = end(node2);
+            node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, 2);
         }
-        public SyntaxNode(int startTokenIndex, int endTokenIndex, NodeType type, SyntaxNode[] children)
-        {
-            this.startTokenIndex = startTokenIndex;
-            this.endTokenIndex = endTokenIndex;
-            this.type = type;
-            this.children = children;
+        if (node0 != -1)
+            node0 = makeNode(NodeType.DEFINITION, start(node0), end(node0), child(node0, 1));
+        return remember(memoKey, node0);
+    }
+
+    /** EXPRESSION = DO | OPERATION */
+    private int parseExpression(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 3;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0;
+        any0: {
+            int node1 = parseDo(tokenIndex, false);
+            if (node1 != -1) {
+                node0 = node1;
+                break any0;
+            }
+            int node2 = parseOperation(tokenIndex, false);
+            if (node2 != -1) {
+                node0 = node2;
+                break any0;
+            }
+            if (throwFailure)
+                throw new ParserError(tokenIndex);
+            node0 = -1;
         }
-        public String getSimpleText()
-        {
-            if (startTokenIndex + 1 == endTokenIndex)
-                return tokens.get(startTokenIndex).text;
-            return null;
+        return remember(memoKey, node0);
+    }
+
+    /** OPERATION = @matchOperation */
+    private int parseOperation(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 4;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = matchOperation(tokenIndex, throwFailure);
+        return remember(memoKey, node0);
+    }
+
+    /** DO = "do" EXPRESSION -> makeDo() */
+    private int parseDo(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 5;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = -1;
+        sequence0: {
+            int pendingSize0 = tree.getPendingSize();
+            int tokenIndex0 = tokenIndex;
+            int node1 = matchToken(tokenIndex0, TokenType.OPERATOR, "do", throwFailure);
+            if (node1 == -1)
+                break sequence0;
+            tree.pushPending(node1);
+            tokenIndex0 = end(node1);
+            int node2 = parseExpression(tokenIndex0, throwFailure);
+            if (node2 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
+            }
+            tree.pushPending(node2);
+            tokenIndex0 = end(node2);
+            node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, 2);
         }
-        @Override
-        public String toString()
-        {
-            StringBuilder result = new StringBuilder();
-            writeNodeToBuffer(result, this, 0);
-            return result.toString();
+        if (node0 != -1)
+            node0 = makeDo(node0);
+        return remember(memoKey, node0);
+    }
+
+    /** ATOM = BLOCK | IF_THEN | PARENS | NUMBER | IDENTIFIER */
+    private int parseAtom(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 6;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0;
+        any0: {
+            int node1 = parseBlock(tokenIndex, false);
+            if (node1 != -1) {
+                node0 = node1;
+                break any0;
+            }
+            int node2 = parseIfThen(tokenIndex, false);
+            if (node2 != -1) {
+                node0 = node2;
+                break any0;
+            }
+            int node3 = parseParens(tokenIndex, false);
+            if (node3 != -1) {
+                node0 = node3;
+                break any0;
+            }
+            int node4 = parseNumber(tokenIndex, false);
+            if (node4 != -1) {
+                node0 = node4;
+                break any0;
+            }
+            int node5 = parseIdentifier(tokenIndex, false);
+            if (node5 != -1) {
+                node0 = node5;
+                break any0;
+            }
+            if (throwFailure)
+                throw new ParserError(tokenIndex);
+            node0 = -1;
         }
+        return remember(memoKey, node0);
     }
 
-    private static void writeNodeToBuffer(StringBuilder builder, SyntaxNode node, int indentation)
+    /** PARENS = "(" EXPRESSION_LIST ")" -> PARENS(1) */
+    private int parseParens(int tokenIndex, boolean throwFailure)
     {
-        builder.append("[").append(node.type.name());
-        if (node.children == null) {
-            String simpleText = node.getSimpleText();
-            if (simpleText != null) {
-                builder.append(" \"").append(simpleText).append('"');
+        int memoKey = tokenIndex * ruleCount + 7;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = -1;
+        sequence0: {
+            int pendingSize0 = tree.getPendingSize();
+            int tokenIndex0 = tokenIndex;
+            int node1 = matchToken(tokenIndex0, TokenType.OPERATOR, "(", throwFailure);
+            if (node1 == -1)
+                break sequence0;
+            tree.pushPending(node1);
+            tokenIndex0 = end(node1);
+            int node2 = parseExpressionList(tokenIndex0, throwFailure);
+            if (node2 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
             }
-        } else {
-            if (node.type == NodeType.BLOCK && ((BlockNode)node).argumentDeclarations != null) {
-                builder.append("\n");
-                for (int i = 0; i < indentation + 1; i++)
-                    builder.append("  ");
-                SyntaxNode argumentDeclarations = ((BlockNode)node).argumentDeclarations;
-                writeNodeToBuffer(builder, argumentDeclarations, indentation + 1);
+            tree.pushPending(node2);
+            tokenIndex0 = end(node2);
+            int node3 = matchToken(tokenIndex0, TokenType.OPERATOR, ")", throwFailure);
+            if (node3 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
             }
-            for (SyntaxNode child : node.children) {
-                builder.append("\n");
-                for (int i = 0; i < indentation + 1; i++)
-                    builder.append("  ");
-                writeNodeToBuffer(builder, child, indentation + 1);
+            tree.pushPending(node3);
+            tokenIndex0 = end(node3);
+            node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, 3);
+        }
+        if (node0 != -1)
+            node0 = makeNode(NodeType.PARENS, start(node0), end(node0), child(node0, 1));
+        return remember(memoKey, node0);
+    }
+
+    /** EXPRESSION_LIST = list(EXPRESSION, ",") -> EXPRESSION_LIST */
+    private int parseExpressionList(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 8;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int tokenIndex0 = tokenIndex;
+        int childCount0 = 0;
+        int node1 = parseExpression(tokenIndex0, false);
+        if (node1 != -1) {
+            tree.pushPending(node1);
+            childCount0++;
+            tokenIndex0 = end(node1);
+            while (isToken(tokenIndex0, TokenType.OPERATOR, ",")) {
+                tokenIndex0++;
+                int node2 = parseExpression(tokenIndex0, false);
+                if (node2 != -1) {
+                    tree.pushPending(node2);
+                    childCount0++;
+                    tokenIndex0 = end(node2);
+                }
+            }
+        }
+        int node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, childCount0);
+        tree.setType(node0, NodeType.EXPRESSION_LIST);
+        return remember(memoKey, node0);
+    }
+
+    /** BLOCK = "{" BLOCK_CONTENTS "}" -> BLOCK(1) */
+    private int parseBlock(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 9;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = -1;
+        sequence0: {
+            int pendingSize0 = tree.getPendingSize();
+            int tokenIndex0 = tokenIndex;
+            int node1 = matchToken(tokenIndex0, TokenType.OPERATOR, "{", throwFailure);
+            if (node1 == -1)
+                break sequence0;
+            tree.pushPending(node1);
+            tokenIndex0 = end(node1);
+            int node2 = parseBlockContents(tokenIndex0, throwFailure);
+            if (node2 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
+            }
+            tree.pushPending(node2);
+            tokenIndex0 = end(node2);
+            int node3 = matchToken(tokenIndex0, TokenType.OPERATOR, "}", throwFailure);
+            if (node3 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
+            }
+            tree.pushPending(node3);
+            tokenIndex0 = end(node3);
+            node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, 3);
+        }
+        if (node0 != -1)
+            node0 = makeNode(NodeType.BLOCK, start(node0), end(node0), child(node0, 1));
+        return remember(memoKey, node0);
+    }
+
+    /** NUMBER = <NUMBER> -> NUMBER */
+    private int parseNumber(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 10;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = matchToken(tokenIndex, TokenType.NUMBER, null, throwFailure);
+        if (node0 != -1)
+            tree.setType(node0, NodeType.NUMBER);
+        return remember(memoKey, node0);
+    }
+
+    /** IDENTIFIER = <IDENTIFIER> -> IDENTIFIER */
+    private int parseIdentifier(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 11;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = matchToken(tokenIndex, TokenType.IDENTIFIER, null, throwFailure);
+        if (node0 != -1)
+            tree.setType(node0, NodeType.IDENTIFIER);
+        return remember(memoKey, node0);
+    }
+
+    /** VARIABLE_DECLARATION = "var" OPERATION -> VARIABLE_DECLARATION(1) */
+    private int parseVariableDeclaration(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 12;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = -1;
+        sequence0: {
+            int pendingSize0 = tree.getPendingSize();
+            int tokenIndex0 = tokenIndex;
+            int node1 = matchToken(tokenIndex0, TokenType.OPERATOR, "var", throwFailure);
+            if (node1 == -1)
+                break sequence0;
+            tree.pushPending(node1);
+            tokenIndex0 = end(node1);
+            int node2 = parseOperation(tokenIndex0, throwFailure);
+            if (node2 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
+            }
+            tree.pushPending(node2);
+            tokenIndex0 = end(node2);
+            node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, 2);
+        }
+        if (node0 != -1)
+            node0 = makeNode(NodeType.VARIABLE_DECLARATION, start(node0), end(node0), child(node0, 1));
+        return remember(memoKey, node0);
+    }
+
+    /** IF_THEN = "if" EXPRESSION "then" EXPRESSION ("else" EXPRESSION)? -> makeIfThen() */
+    private int parseIfThen(int tokenIndex, boolean throwFailure)
+    {
+        int memoKey = tokenIndex * ruleCount + 13;
+        int memoNode = recall(memoKey, tokenIndex, throwFailure);
+        if (memoNode != MemoTable.NOT_MEMOIZED)
+            return memoNode;
+        int node0 = -1;
+        sequence0: {
+            int pendingSize0 = tree.getPendingSize();
+            int tokenIndex0 = tokenIndex;
+            int node1 = matchToken(tokenIndex0, TokenType.OPERATOR, "if", throwFailure);
+            if (node1 == -1)
+                break sequence0;
+            tree.pushPending(node1);
+            tokenIndex0 = end(node1);
+            int node2 = parseExpression(tokenIndex0, throwFailure);
+            if (node2 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
+            }
+            tree.pushPending(node2);
+            tokenIndex0 = end(node2);
+            int node3 = matchToken(tokenIndex0, TokenType.OPERATOR, "then", throwFailure);
+            if (node3 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
             }
-            if (node.children.length > 0) {
-                builder.append("\n");
-                for (int i = 0; i < indentation; i++)
-                    builder.append("  ");
+            tree.pushPending(node3);
+            tokenIndex0 = end(node3);
+            int node4 = parseExpression(tokenIndex0, throwFailure);
+            if (node4 == -1) {
+                // polite failure of any children is a polite failure of the whole
+                tree.truncatePending(pendingSize0);
+                break sequence0;
             }
+            tree.pushPending(node4);
+            tokenIndex0 = end(node4);
+            int node6 = -1;
+            sequence6: {
+                int pendingSize6 = tree.getPendingSize();
+                int tokenIndex6 = tokenIndex0;
+                int node7 = matchToken(tokenIndex6, TokenType.OPERATOR, "else", false);
+                if (node7 == -1)
+                    break sequence6;
+                tree.pushPending(node7);
+                tokenIndex6 = end(node7);
+                int node8 = parseExpression(tokenIndex6, false);
+                if (node8 == -1) {
+                    // polite failure of any children is a polite failure of the whole
+                    tree.truncatePending(pendingSize6);
+                    break sequence6;
+                }
+                tree.pushPending(node8);
+                tokenIndex6 = end(node8);
+                node6 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex0, tokenIndex6, 2);
+            }
+            // spans 0 tokens if there's no match
+            int node5 = node6 != -1 ? node6 : makeNode(NodeType.PARSER_INTERMEDIATE, tokenIndex0, tokenIndex0);
+            tree.pushPending(node5);
+            tokenIndex0 = end(node5);
+            node0 = tree.addNode(NodeType.PARSER_INTERMEDIATE, tokenIndex, tokenIndex0, 5);
         }
-        builder.append("]");
+        if (node0 != -1)
+            node0 = makeIfThen(node0);
+        return remember(memoKey, node0);
     }
+    // end generated code
 
-    public class BlockNode extends SyntaxNode
+    /**
+     * packrat parsing cache from (rule, position) to the result of parsing that rule there, or -1 for no match.
+     * since results can be handed out more than once, the actions in the grammar
+     * must never modify nodes produced by other rules.
+     */
+    private static class MemoTable
     {
-        public SyntaxNode argumentDeclarations = null;
-        public BlockNode(SyntaxNode node)
+        public static final int NOT_MEMOIZED = -2;
+        /** when direct, the key is the index and there are no collisions */
+        private final boolean direct;
+        private final int[] keys;
+        /** values are stored off by 2 so that 0 means empty */
+        private final int[] values;
+        private final int hashShift;
+        public MemoTable(int capacity, boolean direct)
+        {
+            this.direct = direct;
+            if (direct) {
+                keys = null;
+                hashShift = 0;
+            } else {
+                // round up to a power of 2
+                int bits = 32 - Integer.numberOfLeadingZeros(Math.max(capacity - 1, 1));
+                capacity = 1 << bits;
+                hashShift = 32 - bits;
+                keys = new int[capacity];
+            }
+            values = new int[capacity];
+        }
+        public int get(int key)
+        {
+            if (direct)
+                return values[key] - 2;
+            int index = indexFor(key);
+            // keys are stored off by 1 so that 0 means empty
+            if (keys[index] != key + 1)
+                return NOT_MEMOIZED;
+            return values[index] - 2;
+        }
+        public void put(int key, int node)
+        {
+            if (direct) {
+                values[key] = node + 2;
+                return;
+            }
+            int index = indexFor(key);
+            keys[index] = key + 1;
+            values[index] = node + 2;
+        }
+        private int indexFor(int key)
         {
-            super(node.startTokenIndex, node.endTokenIndex, NodeType.BLOCK, new SyntaxNode[] { node.children[1] });
+            // fibonacci hashing spreads neighboring positions across the table
+            return (key * 0x9E3779B9) >>> hashShift;
         }
     }
+
+    public enum NodeType
+    {
+        /** this value should always be replaced by an action in the grammar */
+        PARSER_INTERMEDIATE, //
+        DEFINITION, //
+        CALL, //
+        ASSIGNMENT, //
+        PLUS, //
+        MINUS, //
+        TIMES, //
+        DIVIDED_BY, //
+        ARGUMENT_LIST, //
+        PARENS, //
+        BLOCK_CONTENTS, //
+        EXPRESSION_LIST, //
+        BLOCK, //
+        NUMBER, //
+        IDENTIFIER, //
+        VARIABLE_DECLARATION, //
+        IF_THEN;
+    }
 }
@@ -1,21 +1,25 @@
 package com.wolfesoftware.dorp;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 
-import com.wolfesoftware.dorp.Parser.BlockNode;
 import com.wolfesoftware.dorp.Parser.NodeType;
-import com.wolfesoftware.dorp.Parser.SyntaxNode;
 
 public class SemanticAnalyzer
 {
-    private final SyntaxNode rootNode;
+    private final SyntaxTree syntaxTree;
     private CompilationUnit compilationUnit;
-    public SemanticAnalyzer(SyntaxNode rootNode)
+    public SemanticAnalyzer(SyntaxTree syntaxTree)
     {
-        this.rootNode = rootNode;
+        this.syntaxTree = syntaxTree;
     }
 
     public CompilationUnit analyze()
@@ -24,17 +28,92 @@ public class SemanticAnalyzer
         DorpNamespace builtinContext = createBuiltinContext();
         DorpNamespace namespace = new DorpNamespace(builtinContext);
 
-        StaticFunctionDefinition moduleFunction = new StaticFunctionDefinition(new StaticFunctionSignature(voidType, "entry_point"), rootNode, namespace);
+        StaticFunctionDefinition moduleFunction = new StaticFunctionDefinition(types.getFunctionSignature(voidType, "entry_point"), new VariableDefinition[0], namespace);
         compilationUnit.functions.add(moduleFunction);
-        moduleFunction.expression = evaluate(moduleFunction.namespace, moduleFunction.blockContentsNode);
+        DorpExpression expression = evaluate(moduleFunction.namespace, syntaxTree.getRoot());
+        findEnvironments();
+        moduleFunction.expression = fold(expression);
+        removeUnreachableFunctions(moduleFunction);
+        liftFreeVariables();
 
         return compilationUnit;
     }
 
+    /** keeps only the functions and prototypes that the entry point can get to by calling them or using them as values */
+    private void removeUnreachableFunctions(StaticFunctionDefinition entryPoint)
+    {
+        HashMap<StaticFunctionSignature, FunctionPrototype> prototypes = new HashMap<>();
+        for (FunctionPrototype prototype : compilationUnit.functionPrototypes)
+            prototypes.put(prototype.signature, prototype);
+        for (FunctionPrototype function : compilationUnit.functions)
+            prototypes.put(function.signature, function);
+
+        HashSet<StaticFunctionSignature> reachable = new HashSet<>();
+        reachable.add(entryPoint.signature);
+        ArrayDeque<StaticFunctionDefinition> queue = new ArrayDeque<>();
+        queue.add(entryPoint);
+        ArrayList<StaticFunctionSignature> references = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            references.clear();
+            collectFunctionReferences(queue.remove().expression, references);
+            for (StaticFunctionSignature signature : references) {
+                if (!reachable.add(signature))
+                    continue;
+                FunctionPrototype prototype = prototypes.get(signature);
+                if (prototype instanceof StaticFunctionDefinition)
+                    queue.add((StaticFunctionDefinition)prototype);
+            }
+        }
+
+        for (Iterator<StaticFunctionDefinition> iterator = compilationUnit.functions.iterator(); iterator.hasNext();)
+            if (!reachable.contains(iterator.next().signature))
+                iterator.remove();
+        for (Iterator<FunctionPrototype> iterator = compilationUnit.functionPrototypes.iterator(); iterator.hasNext();)
+            if (!reachable.contains(iterator.next().signature))
+                iterator.remove();
+    }
+    private void collectFunctionReferences(DorpExpression expression, List<StaticFunctionSignature> result)
+    {
+        if (expression instanceof StatementList) {
+            for (DorpExpression childExpression : ((StatementList)expression).expressions)
+                collectFunctionReferences(childExpression, result);
+        } else if (expression instanceof FunctionCall) {
+            FunctionCall functionCall = (FunctionCall)expression;
+            collectFunctionReferences(functionCall.function, result);
+            for (DorpExpression argumentValue : functionCall.argumentValues)
+                collectFunctionReferences(argumentValue, result);
+        } else if (expression instanceof InlinedCall) {
+            InlinedCall inlinedCall = (InlinedCall)expression;
+            collectFunctionReferences(inlinedCall.function, result);
+            for (DorpExpression argumentValue : inlinedCall.argumentValues)
+                collectFunctionReferences(argumentValue, result);
+            collectFunctionReferences(inlinedCall.body, result);
+        } else if (expression instanceof Assignment) {
+            collectFunctionReferences(((Assignment)expression).value, result);
+        } else if (expression instanceof VariableDefinition) {
+            DorpExpression constantValue = ((VariableDefinition)expression).constantValue;
+            if (constantValue != null)
+                collectFunctionReferences(constantValue, result);
+        } else if (expression instanceof BinaryOperation) {
+            collectFunctionReferences(((BinaryOperation)expression).left, result);
+            collectFunctionReferences(((BinaryOperation)expression).right, result);
+        } else if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            collectFunctionReferences(ifThenElse.condition, result);
+            collectFunctionReferences(ifThenElse.thenValue, result);
+            if (ifThenElse.elseValue != null)
+                collectFunctionReferences(ifThenElse.elseValue, result);
+        } else if (expression instanceof LiteralValue) {
+            DorpType type = expression.getType();
+            if (type instanceof StaticFunctionSignature)
+                result.add((StaticFunctionSignature)type);
+        }
+    }
+
     private DorpNamespace createBuiltinContext()
     {
         DorpNamespace result = new DorpNamespace(null);
-        StaticFunctionSignature printFunctionSignature = new StaticFunctionSignature(voidType, "dorp_print", integerType);
+        StaticFunctionSignature printFunctionSignature = types.getFunctionSignature(voidType, "dorp_print", integerType);
         compilationUnit.functionPrototypes.add(new FunctionPrototype(printFunctionSignature));
         result.defineConstant("print", new LiteralValue(printFunctionSignature, null));
         result.defineConstant("true", new LiteralValue(booleanType, "true"));
@@ -43,27 +122,33 @@ public class SemanticAnalyzer
         return result;
     }
 
-    private DorpExpression evaluate(DorpNamespace namespace, SyntaxNode syntaxNode)
+    private DorpExpression evaluate(DorpNamespace namespace, int syntaxNode)
     {
-        switch (syntaxNode.type) {
+        NodeType nodeType = syntaxTree.getType(syntaxNode);
+        switch (nodeType) {
             case BLOCK_CONTENTS: {
                 ArrayList<DorpExpression> expressions = new ArrayList<>();
-                for (SyntaxNode statement : syntaxNode.children)
-                    if (statement.type == NodeType.DEFINITION)
+                int statementCount = syntaxTree.getChildCount(syntaxNode);
+                for (int i = 0; i < statementCount; i++) {
+                    int statement = syntaxTree.getChild(syntaxNode, i);
+                    if (syntaxTree.getType(statement) == NodeType.DEFINITION)
                         expressions.add(evaluate(namespace, statement));
-                for (SyntaxNode statement : syntaxNode.children)
-                    if (statement.type != NodeType.DEFINITION)
+                }
+                for (int i = 0; i < statementCount; i++) {
+                    int statement = syntaxTree.getChild(syntaxNode, i);
+                    if (syntaxTree.getType(statement) != NodeType.DEFINITION)
                         expressions.add(evaluate(namespace, statement));
+                }
                 return new StatementList(expressions);
             }
             case CALL: {
                 // get the types of everything we're working with
-                DorpExpression function = evaluate(namespace, syntaxNode.children[0]);
-                SyntaxNode argumentList = syntaxNode.children[1];
-                DorpExpression[] argumentValues = new DorpExpression[argumentList.children.length];
+                DorpExpression function = evaluate(namespace, syntaxTree.getChild(syntaxNode, 0));
+                int argumentList = syntaxTree.getChild(syntaxNode, 1);
+                DorpExpression[] argumentValues = new DorpExpression[syntaxTree.getChildCount(argumentList)];
                 DorpType[] argumentTypes = new DorpType[argumentValues.length];
                 for (int i = 0; i < argumentValues.length; i++) {
-                    argumentValues[i] = evaluate(namespace, argumentList.children[i]);
+                    argumentValues[i] = evaluate(namespace, syntaxTree.getChild(argumentList, i));
                     argumentTypes[i] = argumentValues[i].getType();
                 }
                 // what kind of function are we calling?
@@ -73,7 +158,7 @@ public class SemanticAnalyzer
                     if (argumentValues.length != signature.argumentTypes.length)
                         throw new RuntimeException();
                     for (int i = 0; i < argumentValues.length; i++)
-                        if (argumentTypes[i] != signature.argumentTypes[i])
+                        if (argumentTypes[i] != signature.argumentTypes[i] && argumentTypes[i] != unknownType)
                             throw new RuntimeException();
                     return new FunctionCall(function, signature.returnType, argumentValues);
                 }
@@ -83,14 +168,26 @@ public class SemanticAnalyzer
                         throw new RuntimeException();
                     // instantiate all possible function bodies for this set of argument types
                     List<TemplateFunctionInstantiation> instantiations = templateReference.instantiate(argumentTypes);
+                    TemplateFunctionInstantiation caller = namespace.instantiation;
+                    if (caller != null)
+                        caller.dispatchedReferences.put(templateReference, 0);
                     ArrayList<DorpType> returnTypes = new ArrayList<>();
                     for (TemplateFunctionInstantiation instantiation : instantiations) {
-                        DorpNamespace newNamespace = new DorpNamespace(instantiation.templateDefinition.parentNamespace);
-                        for (int i = 0; i < argumentTypes.length; i++)
-                            newNamespace.defineVariable(instantiation.templateDefinition.argumentNames[i], argumentTypes[i]);
-                        DorpType returnType = evaluate(newNamespace, instantiation.templateDefinition.blockContentsNode).getType();
-                        instantiation.returnType = returnType;
-                        returnTypes.add(returnType);
+                        if (instantiation.isBeingAnalyzed) {
+                            instantiation.isRecursive = true;
+                            if (instantiation.returnType == null) {
+                                instantiation.needsAnotherPass = true;
+                                returnTypes.add(unknownType);
+                                continue;
+                            }
+                        } else if (instantiation.expression == null || instantiation.isStale()) {
+                            // first time for these argument types, or something it calls can be more functions now
+                            analyzeInstantiation(instantiation);
+                        }
+                        // the caller's body is only right for as long as this one's is
+                        if (caller != null && caller != instantiation)
+                            caller.dispatchedReferences.putAll(instantiation.dispatchedReferences);
+                        returnTypes.add(instantiation.returnType);
                     }
                     DorpType returnType = mergeTypes(returnTypes.toArray(new DorpType[0]));
                     return new FunctionCall(function, returnType, argumentValues);
@@ -98,24 +195,24 @@ public class SemanticAnalyzer
                 throw null;
             }
             case BLOCK: {
-                BlockNode blockNode = (BlockNode)syntaxNode;
                 // tODO: care about the argument names
-                String[] argumentNames = new String[blockNode.argumentDeclarations != null ? blockNode.argumentDeclarations.children.length : 0];
+                int argumentDeclarations = syntaxTree.getBlockArgumentDeclarations(syntaxNode);
+                String[] argumentNames = new String[argumentDeclarations != -1 ? syntaxTree.getChildCount(argumentDeclarations) : 0];
                 for (int i = 0; i < argumentNames.length; i++) {
-                    SyntaxNode argumentNode = blockNode.argumentDeclarations.children[i];
-                    if (argumentNode.type != NodeType.IDENTIFIER)
+                    int argumentNode = syntaxTree.getChild(argumentDeclarations, i);
+                    if (syntaxTree.getType(argumentNode) != NodeType.IDENTIFIER)
                         throw new RuntimeException();
-                    argumentNames[i] = argumentNode.getSimpleText();
+                    argumentNames[i] = syntaxTree.getSimpleText(argumentNode);
                 }
-                SyntaxNode blockContentsNode = blockNode.children[0];
+                int blockContentsNode = syntaxTree.getBlockContents(syntaxNode);
                 TemplateFunctionDefinition templateDefinition = new TemplateFunctionDefinition(argumentNames, blockContentsNode, namespace);
-                return new LiteralValue(new TemplateFunctionReference(templateDefinition), null);
+                return new LiteralValue(types.getTemplateUnion(templateDefinition), null);
             }
             case IF_THEN: {
-                DorpExpression condition = evaluate(namespace, syntaxNode.children[0]);
-                DorpExpression thenValue = evaluate(namespace, syntaxNode.children[1]);
-                DorpExpression elseValue = syntaxNode.children.length > 2 ? evaluate(namespace, syntaxNode.children[2]) : null;
-                if (condition.getType() != booleanType)
+                DorpExpression condition = evaluate(namespace, syntaxTree.getChild(syntaxNode, 0));
+                DorpExpression thenValue = evaluate(namespace, syntaxTree.getChild(syntaxNode, 1));
+                DorpExpression elseValue = syntaxTree.getChildCount(syntaxNode) > 2 ? evaluate(namespace, syntaxTree.getChild(syntaxNode, 2)) : null;
+                if (condition.getType() != booleanType && condition.getType() != unknownType)
                     throw new RuntimeException();
                 DorpType thenType = thenValue.getType();
                 DorpType elseType = elseValue != null ? elseValue.getType() : voidType;
@@ -126,45 +223,623 @@ public class SemanticAnalyzer
             case DEFINITION:
             case VARIABLE_DECLARATION:
             case ASSIGNMENT: {
-                SyntaxNode assignment = syntaxNode.type == NodeType.ASSIGNMENT ? syntaxNode : syntaxNode.children[0];
-                SyntaxNode nameNode = assignment.children[0];
-                if (nameNode.type != NodeType.IDENTIFIER)
+                int assignment = nodeType == NodeType.ASSIGNMENT ? syntaxNode : syntaxTree.getChild(syntaxNode, 0);
+                int nameNode = syntaxTree.getChild(assignment, 0);
+                if (syntaxTree.getType(nameNode) != NodeType.IDENTIFIER)
                     throw new RuntimeException();
-                String name = nameNode.getSimpleText();
-                DorpExpression value = evaluate(namespace, assignment.children[1]);
+                String name = syntaxTree.getSimpleText(nameNode);
+                DorpExpression value = evaluate(namespace, syntaxTree.getChild(assignment, 1));
                 VariableDefinition definition;
-                if (syntaxNode.type == NodeType.DEFINITION) {
+                if (nodeType == NodeType.DEFINITION) {
                     definition = namespace.defineConstant(name, value);
-                } else if (syntaxNode.type == NodeType.VARIABLE_DECLARATION) {
-                    DorpType type = value.getType();
-                    if (type instanceof TemplateFunctionType) {
-                        // need to make a reference so that the variable's later assignments don't
-                        // contaminate this value's references
-                        type = new TemplateFunctionReference((TemplateFunctionType)type);
-                    }
-                    definition = namespace.defineVariable(name, type);
-                } else if (syntaxNode.type == NodeType.ASSIGNMENT) {
-                    definition = namespace.lookup(name);
+                } else if (nodeType == NodeType.VARIABLE_DECLARATION) {
+                    definition = namespace.defineVariable(name, makeAssignable(value.getType()));
+                } else if (nodeType == NodeType.ASSIGNMENT) {
+                    definition = lookupVariable(namespace, name);
                     if (definition.constantValue != null)
                         throw new RuntimeException();
+                    definition.isReassigned = true;
                     assignTypes(definition.type, value.getType());
                 } else
                     throw null;
                 return new Assignment(definition, value);
             }
             case IDENTIFIER: {
-                String name = syntaxNode.getSimpleText();
-                return namespace.lookup(name);
+                String name = syntaxTree.getSimpleText(syntaxNode);
+                return lookupVariable(namespace, name);
             }
             case NUMBER:
-                return new LiteralValue(integerType, syntaxNode.getSimpleText());
+                return new LiteralValue(integerType, syntaxTree.getSimpleText(syntaxNode));
+            case PLUS:
+            case MINUS:
+            case TIMES:
+            case DIVIDED_BY: {
+                DorpExpression left = evaluate(namespace, syntaxTree.getChild(syntaxNode, 0));
+                DorpExpression right = evaluate(namespace, syntaxTree.getChild(syntaxNode, 1));
+                if (!isIntegerOrUnknown(left.getType()) || !isIntegerOrUnknown(right.getType()))
+                    throw new RuntimeException();
+                return new BinaryOperation(nodeType, left, right);
+            }
+            case PARENS: {
+                // tODO: tuples
+                int expressionList = syntaxTree.getChild(syntaxNode, 0);
+                if (syntaxTree.getChildCount(expressionList) != 1)
+                    throw new RuntimeException();
+                return evaluate(namespace, syntaxTree.getChild(expressionList, 0));
+            }
             default:
                 throw null;
         }
     }
 
+    /**
+     * a recursive call can't know the return type while it's still being figured out,
+     * so it's Unknown, and that goes away when it's merged with the types of the paths that don't recurse.
+     * if that happens, the body gets analyzed again with the real return type.
+     */
+    private void analyzeInstantiation(TemplateFunctionInstantiation instantiation)
+    {
+        analyzedInstantiations.add(instantiation);
+        int nestedStart = analyzedInstantiations.size();
+        instantiation.isBeingAnalyzed = true;
+        instantiation.dispatchedReferences.clear();
+        DorpExpression expression = evaluateInstantiation(instantiation);
+        if (instantiation.needsAnotherPass) {
+            instantiation.returnType = expression.getType();
+            if (instantiation.returnType == unknownType) {
+                // it never returns
+                instantiation.returnType = voidType;
+            }
+            // the ones analyzed in the meantime might have gotten Unknown from this one too
+            List<TemplateFunctionInstantiation> nestedInstantiations = analyzedInstantiations.subList(nestedStart, analyzedInstantiations.size());
+            for (TemplateFunctionInstantiation nestedInstantiation : nestedInstantiations) {
+                nestedInstantiation.expression = null;
+                nestedInstantiation.returnType = null;
+                nestedInstantiation.isRecursive = false;
+                nestedInstantiation.needsAnotherPass = false;
+            }
+            nestedInstantiations.clear();
+            expression = evaluateInstantiation(instantiation);
+            if (expression.getType() != instantiation.returnType)
+                throw new RuntimeException();
+        }
+        instantiation.isBeingAnalyzed = false;
+        instantiation.expression = expression;
+        instantiation.returnType = expression.getType();
+        for (Map.Entry<TemplateFunctionReference, Integer> entry : instantiation.dispatchedReferences.entrySet())
+            entry.setValue(entry.getKey().getDefinitions().size());
+    }
+    private DorpExpression evaluateInstantiation(TemplateFunctionInstantiation instantiation)
+    {
+        DorpNamespace newNamespace = new DorpNamespace(instantiation.templateDefinition.parentNamespace);
+        instantiation.namespace = newNamespace;
+        newNamespace.instantiation = instantiation;
+        DorpType[] argumentTypes = instantiation.argumentTypes;
+        instantiation.parameters = new VariableDefinition[argumentTypes.length];
+        for (int i = 0; i < argumentTypes.length; i++)
+            instantiation.parameters[i] = newNamespace.defineVariable(instantiation.templateDefinition.argumentNames[i], makeAssignable(argumentTypes[i]));
+        return evaluate(newNamespace, instantiation.templateDefinition.blockContentsNode);
+    }
+
+    /** notes the variables that closures use from the functions around them */
+    private VariableDefinition lookupVariable(DorpNamespace namespace, String name)
+    {
+        VariableDefinition definition = namespace.lookup(name);
+        if (definition.constantValue != null)
+            return definition;
+        // it's free in every template between here and there
+        for (; namespace != definition.namespace; namespace = namespace.parent)
+            if (namespace.instantiation != null && namespace.instantiation.templateDefinition.freeVariables.add(definition))
+                capturedVariables.add(definition);
+        return definition;
+    }
+
+    /** in the order they were made, so every namespace comes after the ones around it */
+    private final ArrayList<TemplateFunctionInstantiation> analyzedInstantiations = new ArrayList<>();
+    /** the free variables of every template */
+    private final LinkedHashSet<VariableDefinition> capturedVariables = new LinkedHashSet<>();
+
+    /**
+     * a closure escapes the call that made it if it can be returned from it or stored somewhere that lasts longer.
+     * an escaping closure gets a record of the values of its free variables when it's made.
+     * the ones that can change after that are shared through a cell instead.
+     * closures that don't escape get nothing, because they're only called while their free variables are still in registers.
+     * this only goes by the types of things, so it's conservative.
+     */
+    private void findEnvironments()
+    {
+        LinkedHashSet<TemplateFunctionDefinition> definitions = new LinkedHashSet<>();
+        for (TemplateFunctionInstantiation instantiation : analyzedInstantiations)
+            definitions.add(instantiation.templateDefinition);
+        for (TemplateFunctionDefinition definition : definitions) {
+            ArrayList<VariableDefinition> environment = new ArrayList<>();
+            for (VariableDefinition freeVariable : definition.freeVariables)
+                if (freeVariable.type != voidType)
+                    environment.add(freeVariable);
+            if (environment.isEmpty() || !canEscape(definition, definition.parentNamespace))
+                continue;
+            definition.environment = environment;
+            for (VariableDefinition freeVariable : environment)
+                if (freeVariable.isReassigned)
+                    freeVariable.isCell = true;
+        }
+    }
+    private boolean canEscape(TemplateFunctionDefinition closure, DorpNamespace namespace)
+    {
+        if (namespace.instantiation == null) {
+            // the module outlives everything
+            return false;
+        }
+        if (isClosureType(namespace.instantiation.returnType, closure))
+            return true;
+        for (DorpNamespace ancestor = namespace.parent; ancestor != null; ancestor = ancestor.parent)
+            for (VariableDefinition definition : ancestor.names.values())
+                if (isClosureType(definition.type, closure))
+                    return true;
+        // other closures can read these later
+        for (VariableDefinition definition : capturedVariables)
+            if (!isWithin(definition.namespace, namespace) && isClosureType(definition.type, closure))
+                return true;
+        return false;
+    }
+    /** @return whether a value of this type can be the closure */
+    private static boolean isClosureType(DorpType type, TemplateFunctionDefinition closure)
+    {
+        if (type == closure)
+            return true;
+        return type instanceof TemplateFunctionReference && ((TemplateFunctionReference)type).getDefinitions().contains(closure);
+    }
+    private static boolean isWithin(DorpNamespace namespace, DorpNamespace ancestor)
+    {
+        for (; namespace != null; namespace = namespace.parent)
+            if (namespace == ancestor)
+                return true;
+        return false;
+    }
+
+    /**
+     * does the operations on literals, replaces def constants with their values,
+     * and drops the arms of if/then/else that can't happen.
+     */
+    private DorpExpression fold(DorpExpression expression)
+    {
+        if (expression instanceof StatementList) {
+            List<DorpExpression> expressions = ((StatementList)expression).expressions;
+            ArrayList<DorpExpression> foldedExpressions = new ArrayList<>(expressions.size());
+            for (DorpExpression childExpression : expressions)
+                foldedExpressions.add(fold(childExpression));
+            return new StatementList(foldedExpressions);
+        }
+        if (expression instanceof FunctionCall) {
+            FunctionCall functionCall = (FunctionCall)expression;
+            DorpExpression function = fold(functionCall.function);
+            DorpExpression[] argumentValues = new DorpExpression[functionCall.argumentValues.length];
+            DorpType[] argumentTypes = new DorpType[argumentValues.length];
+            for (int i = 0; i < argumentValues.length; i++) {
+                argumentTypes[i] = functionCall.argumentValues[i].getType();
+                argumentValues[i] = fold(functionCall.argumentValues[i]);
+            }
+            TemplateFunctionInstantiation instantiation = getOnlyInstantiation(function, argumentTypes);
+            if (instantiation != null && instantiation.isRecursive) {
+                // inlining it would never end
+                if (!(function instanceof LiteralValue || function instanceof VariableDefinition))
+                    throw new RuntimeException();
+                function = new LiteralValue(getOutOfLineFunction(instantiation).signature, null);
+            } else if (instantiation != null) {
+                DorpExpression body = getFoldedBody(instantiation);
+                // a direct call would skip evaluating anything more complicated than a name
+                boolean isSimpleFunction = function instanceof LiteralValue || function instanceof VariableDefinition;
+                if (countExpressions(body) <= INLINE_COST_LIMIT || !isSimpleFunction || !canCallOutOfLine(instantiation))
+                    return new InlinedCall(function, instantiation, argumentValues, body);
+                function = new LiteralValue(getOutOfLineFunction(instantiation).signature, null);
+            }
+            return new FunctionCall(function, functionCall.returnType, argumentValues);
+        }
+        if (expression instanceof Assignment) {
+            Assignment assignment = (Assignment)expression;
+            return new Assignment(assignment.definition, fold(assignment.value));
+        }
+        if (expression instanceof VariableDefinition) {
+            VariableDefinition definition = (VariableDefinition)expression;
+            if (definition.constantValue != null) {
+                DorpExpression value = fold(definition.constantValue);
+                if (value instanceof LiteralValue)
+                    return value;
+            }
+            return definition;
+        }
+        if (expression instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation)expression;
+            DorpExpression left = fold(operation.left);
+            DorpExpression right = fold(operation.right);
+            Integer leftValue = getIntegerValue(left);
+            Integer rightValue = getIntegerValue(right);
+            if (leftValue != null && rightValue != null) {
+                Integer value = foldIntegerOperation(operation.operator, leftValue, rightValue);
+                if (value != null)
+                    return new LiteralValue(integerType, value.toString());
+            }
+            return new BinaryOperation(operation.operator, left, right);
+        }
+        if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            DorpExpression condition = fold(ifThenElse.condition);
+            if (condition instanceof LiteralValue) {
+                if (((LiteralValue)condition).text.equals("true"))
+                    return fold(ifThenElse.thenValue);
+                if (ifThenElse.elseValue != null)
+                    return fold(ifThenElse.elseValue);
+                return new StatementList(new ArrayList<DorpExpression>());
+            }
+            DorpExpression elseValue = ifThenElse.elseValue != null ? fold(ifThenElse.elseValue) : null;
+            return new IfThenElse(condition, fold(ifThenElse.thenValue), elseValue, ifThenElse.returnValueVariable);
+        }
+        return expression;
+    }
+    /** bodies up to this many expressions are copied into every call site */
+    private static final int INLINE_COST_LIMIT = 16;
+
+    /** @return the instantiation a call to this function will run, if there's only one that it could be */
+    private TemplateFunctionInstantiation getOnlyInstantiation(DorpExpression function, DorpType[] argumentTypes)
+    {
+        DorpType type = function.getType();
+        TemplateFunctionDefinition definition;
+        if (type instanceof TemplateFunctionDefinition) {
+            definition = (TemplateFunctionDefinition)type;
+        } else if (type instanceof TemplateFunctionReference) {
+            List<TemplateFunctionDefinition> definitions = ((TemplateFunctionReference)type).getDefinitions();
+            if (definitions.size() != 1)
+                return null;
+            definition = definitions.get(0);
+        } else {
+            return null;
+        }
+        TemplateFunctionInstantiation instantiation = definition.instantiations.get(Arrays.asList(argumentTypes));
+        if (instantiation == null || instantiation.expression == null)
+            return null;
+        return instantiation;
+    }
+    private DorpExpression getFoldedBody(TemplateFunctionInstantiation instantiation)
+    {
+        if (instantiation.foldedExpression == null)
+            instantiation.foldedExpression = fold(instantiation.expression);
+        return instantiation.foldedExpression;
+    }
+    /**
+     * an instantiation can only be its own function if all its values exist at runtime,
+     * and if it doesn't use any local variables from outside.
+     * an out-of-line function only gets its arguments, not a closure record, so those calls get inlined instead.
+     * recursive ones can't be inlined, so {@link #liftFreeVariables()} passes them the variables as arguments.
+     */
+    private boolean canCallOutOfLine(TemplateFunctionInstantiation instantiation)
+    {
+        if (!hasRuntimeTypes(instantiation))
+            return false;
+        HashSet<VariableDefinition> locals = new HashSet<>(instantiation.namespace.names.values());
+        return !usesOtherLocals(getFoldedBody(instantiation), locals);
+    }
+    private boolean hasRuntimeTypes(TemplateFunctionInstantiation instantiation)
+    {
+        if (!isRuntimeType(instantiation.returnType))
+            return false;
+        for (DorpType argumentType : instantiation.argumentTypes)
+            if (!isRuntimeType(argumentType))
+                return false;
+        return true;
+    }
+    private boolean isRuntimeType(DorpType type)
+    {
+        return isPrimitive(type) || type instanceof StaticFunctionSignature;
+    }
+    /** @param locals the variables that belong to the function, which gets added to as inlined calls are found */
+    private boolean usesOtherLocals(DorpExpression expression, HashSet<VariableDefinition> locals)
+    {
+        if (expression instanceof StatementList) {
+            for (DorpExpression childExpression : ((StatementList)expression).expressions)
+                if (usesOtherLocals(childExpression, locals))
+                    return true;
+            return false;
+        }
+        if (expression instanceof FunctionCall) {
+            FunctionCall functionCall = (FunctionCall)expression;
+            if (usesOtherLocals(functionCall.function, locals))
+                return true;
+            for (DorpExpression argumentValue : functionCall.argumentValues)
+                if (usesOtherLocals(argumentValue, locals))
+                    return true;
+            return false;
+        }
+        if (expression instanceof InlinedCall) {
+            InlinedCall inlinedCall = (InlinedCall)expression;
+            if (usesOtherLocals(inlinedCall.function, locals))
+                return true;
+            for (DorpExpression argumentValue : inlinedCall.argumentValues)
+                if (usesOtherLocals(argumentValue, locals))
+                    return true;
+            locals.addAll(inlinedCall.localVariables);
+            return usesOtherLocals(inlinedCall.body, locals);
+        }
+        if (expression instanceof Assignment) {
+            Assignment assignment = (Assignment)expression;
+            return usesOtherLocals(assignment.definition, locals) || usesOtherLocals(assignment.value, locals);
+        }
+        if (expression instanceof VariableDefinition) {
+            VariableDefinition definition = (VariableDefinition)expression;
+            if (definition.constantValue != null)
+                return usesOtherLocals(definition.constantValue, locals);
+            return !locals.contains(definition);
+        }
+        if (expression instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation)expression;
+            return usesOtherLocals(operation.left, locals) || usesOtherLocals(operation.right, locals);
+        }
+        if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            if (usesOtherLocals(ifThenElse.condition, locals) || usesOtherLocals(ifThenElse.thenValue, locals))
+                return true;
+            if (ifThenElse.returnValueVariable != null)
+                locals.add(ifThenElse.returnValueVariable);
+            return ifThenElse.elseValue != null && usesOtherLocals(ifThenElse.elseValue, locals);
+        }
+        if (expression instanceof LiteralValue && expression.getType() instanceof TemplateFunctionType) {
+            // a closure's record gets the values of its free variables
+            List<VariableDefinition> environment = ((TemplateFunctionType)expression.getType()).getEnvironment();
+            return environment != null && !locals.containsAll(environment);
+        }
+        return false;
+    }
+    private StaticFunctionDefinition getOutOfLineFunction(TemplateFunctionInstantiation instantiation)
+    {
+        if (instantiation.function == null) {
+            StaticFunctionSignature signature = types.getFunctionSignature(instantiation.returnType, instantiation.symbolName, instantiation.argumentTypes);
+            instantiation.function = new StaticFunctionDefinition(signature, instantiation.parameters, instantiation.namespace);
+            compilationUnit.functions.add(instantiation.function);
+            // recursive calls in the body find the function already made
+            instantiation.function.expression = getFoldedBody(instantiation);
+            if (!hasRuntimeTypes(instantiation))
+                throw new RuntimeException("a recursive function can't take or return closures");
+        }
+        return instantiation.function;
+    }
+    /**
+     * gives out-of-line functions the variables they use from outside as extra parameters, and passes them at every call.
+     * the values are copied in, so the functions can't assign to them, and they can't be cells that a closure changes.
+     */
+    private void liftFreeVariables()
+    {
+        HashMap<StaticFunctionSignature, LinkedHashSet<VariableDefinition>> freeVariables = new HashMap<>();
+        for (StaticFunctionDefinition function : compilationUnit.functions)
+            freeVariables.put(function.signature, new LinkedHashSet<VariableDefinition>());
+        // a call needs what the callee needs, so keep going until nothing new shows up
+        boolean isChanged = true;
+        while (isChanged) {
+            isChanged = false;
+            for (StaticFunctionDefinition function : compilationUnit.functions) {
+                LinkedHashSet<VariableDefinition> result = freeVariables.get(function.signature);
+                int sizeBefore = result.size();
+                collectFreeVariables(function.expression, new HashSet<>(function.getLocalVariableDefinitions()), freeVariables, result);
+                if (result.size() != sizeBefore)
+                    isChanged = true;
+            }
+        }
+
+        HashMap<StaticFunctionSignature, StaticFunctionDefinition> liftedFunctions = new HashMap<>();
+        for (StaticFunctionDefinition function : compilationUnit.functions) {
+            LinkedHashSet<VariableDefinition> variables = freeVariables.get(function.signature);
+            if (variables.isEmpty())
+                continue;
+            int argumentCount = function.parameters.length;
+            DorpType[] argumentTypes = Arrays.copyOf(function.signature.argumentTypes, argumentCount + variables.size());
+            VariableDefinition[] parameters = Arrays.copyOf(function.parameters, argumentCount + variables.size());
+            for (VariableDefinition variable : variables) {
+                if (variable.isCell)
+                    throw new RuntimeException("a recursive function can't use a variable that a closure can change: " + variable.name);
+                argumentTypes[argumentCount] = variable.type;
+                parameters[argumentCount] = variable;
+                argumentCount++;
+            }
+            StaticFunctionSignature signature = types.getFunctionSignature(function.signature.returnType, function.signature.symbolName, argumentTypes);
+            liftedFunctions.put(function.signature, new StaticFunctionDefinition(signature, parameters, function.namespace));
+        }
+        if (liftedFunctions.isEmpty())
+            return;
+        for (int i = 0; i < compilationUnit.functions.size(); i++) {
+            StaticFunctionDefinition function = compilationUnit.functions.get(i);
+            StaticFunctionDefinition liftedFunction = liftedFunctions.get(function.signature);
+            if (liftedFunction == null)
+                liftedFunction = function;
+            liftedFunction.expression = liftCalls(function.expression, liftedFunctions);
+            compilationUnit.functions.set(i, liftedFunction);
+        }
+    }
+    /** @param locals gets added to as inlined calls are found, like in {@link #usesOtherLocals(DorpExpression, HashSet)} */
+    private void collectFreeVariables(DorpExpression expression, HashSet<VariableDefinition> locals, HashMap<StaticFunctionSignature, LinkedHashSet<VariableDefinition>> freeVariables, LinkedHashSet<VariableDefinition> result)
+    {
+        if (expression instanceof StatementList) {
+            for (DorpExpression childExpression : ((StatementList)expression).expressions)
+                collectFreeVariables(childExpression, locals, freeVariables, result);
+        } else if (expression instanceof FunctionCall) {
+            FunctionCall functionCall = (FunctionCall)expression;
+            collectFreeVariables(functionCall.function, locals, freeVariables, result);
+            for (DorpExpression argumentValue : functionCall.argumentValues)
+                collectFreeVariables(argumentValue, locals, freeVariables, result);
+            LinkedHashSet<VariableDefinition> calleeVariables = freeVariables.get(functionCall.function.getType());
+            if (functionCall.function instanceof LiteralValue && calleeVariables != null)
+                for (VariableDefinition variable : new ArrayList<>(calleeVariables))
+                    if (!locals.contains(variable))
+                        result.add(variable);
+        } else if (expression instanceof InlinedCall) {
+            InlinedCall inlinedCall = (InlinedCall)expression;
+            collectFreeVariables(inlinedCall.function, locals, freeVariables, result);
+            for (DorpExpression argumentValue : inlinedCall.argumentValues)
+                collectFreeVariables(argumentValue, locals, freeVariables, result);
+            locals.addAll(inlinedCall.localVariables);
+            collectFreeVariables(inlinedCall.body, locals, freeVariables, result);
+        } else if (expression instanceof Assignment) {
+            Assignment assignment = (Assignment)expression;
+            if (!locals.contains(assignment.definition))
+                throw new RuntimeException("a recursive function can't assign to a variable from outside it: " + assignment.definition.name);
+            collectFreeVariables(assignment.value, locals, freeVariables, result);
+        } else if (expression instanceof VariableDefinition) {
+            VariableDefinition definition = (VariableDefinition)expression;
+            if (definition.constantValue != null)
+                collectFreeVariables(definition.constantValue, locals, freeVariables, result);
+            else if (!locals.contains(definition))
+                result.add(definition);
+        } else if (expression instanceof BinaryOperation) {
+            collectFreeVariables(((BinaryOperation)expression).left, locals, freeVariables, result);
+            collectFreeVariables(((BinaryOperation)expression).right, locals, freeVariables, result);
+        } else if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            if (ifThenElse.returnValueVariable != null)
+                locals.add(ifThenElse.returnValueVariable);
+            collectFreeVariables(ifThenElse.condition, locals, freeVariables, result);
+            collectFreeVariables(ifThenElse.thenValue, locals, freeVariables, result);
+            if (ifThenElse.elseValue != null)
+                collectFreeVariables(ifThenElse.elseValue, locals, freeVariables, result);
+        } else if (expression instanceof LiteralValue && expression.getType() instanceof TemplateFunctionType) {
+            List<VariableDefinition> environment = ((TemplateFunctionType)expression.getType()).getEnvironment();
+            if (environment != null)
+                for (VariableDefinition variable : environment)
+                    if (!locals.contains(variable))
+                        result.add(variable);
+        }
+    }
+    /** @return the expression with the calls to the functions passing their free variables too */
+    private DorpExpression liftCalls(DorpExpression expression, HashMap<StaticFunctionSignature, StaticFunctionDefinition> liftedFunctions)
+    {
+        if (expression instanceof StatementList) {
+            List<DorpExpression> expressions = ((StatementList)expression).expressions;
+            ArrayList<DorpExpression> liftedExpressions = new ArrayList<>(expressions.size());
+            for (DorpExpression childExpression : expressions)
+                liftedExpressions.add(liftCalls(childExpression, liftedFunctions));
+            return new StatementList(liftedExpressions);
+        }
+        if (expression instanceof FunctionCall) {
+            FunctionCall functionCall = (FunctionCall)expression;
+            StaticFunctionDefinition liftedFunction = liftedFunctions.get(functionCall.function.getType());
+            DorpExpression function;
+            DorpExpression[] argumentValues;
+            if (functionCall.function instanceof LiteralValue && liftedFunction != null) {
+                function = new LiteralValue(liftedFunction.signature, null);
+                argumentValues = new DorpExpression[liftedFunction.parameters.length];
+                for (int i = functionCall.argumentValues.length; i < argumentValues.length; i++)
+                    argumentValues[i] = liftedFunction.parameters[i];
+            } else {
+                function = liftCalls(functionCall.function, liftedFunctions);
+                argumentValues = new DorpExpression[functionCall.argumentValues.length];
+            }
+            for (int i = 0; i < functionCall.argumentValues.length; i++)
+                argumentValues[i] = liftCalls(functionCall.argumentValues[i], liftedFunctions);
+            return new FunctionCall(function, functionCall.returnType, argumentValues);
+        }
+        if (expression instanceof InlinedCall) {
+            InlinedCall inlinedCall = (InlinedCall)expression;
+            DorpExpression[] argumentValues = new DorpExpression[inlinedCall.argumentValues.length];
+            for (int i = 0; i < argumentValues.length; i++)
+                argumentValues[i] = liftCalls(inlinedCall.argumentValues[i], liftedFunctions);
+            return new InlinedCall(inlinedCall, liftCalls(inlinedCall.function, liftedFunctions), argumentValues, liftCalls(inlinedCall.body, liftedFunctions));
+        }
+        if (expression instanceof Assignment) {
+            Assignment assignment = (Assignment)expression;
+            return new Assignment(assignment.definition, liftCalls(assignment.value, liftedFunctions));
+        }
+        if (expression instanceof BinaryOperation) {
+            BinaryOperation operation = (BinaryOperation)expression;
+            return new BinaryOperation(operation.operator, liftCalls(operation.left, liftedFunctions), liftCalls(operation.right, liftedFunctions));
+        }
+        if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            DorpExpression elseValue = ifThenElse.elseValue != null ? liftCalls(ifThenElse.elseValue, liftedFunctions) : null;
+            return new IfThenElse(liftCalls(ifThenElse.condition, liftedFunctions), liftCalls(ifThenElse.thenValue, liftedFunctions), elseValue, ifThenElse.returnValueVariable);
+        }
+        if (expression instanceof LiteralValue && liftedFunctions.containsKey(expression.getType())) {
+            // a pointer to the function wouldn't have anywhere to put the extra arguments
+            throw new RuntimeException("a recursive function that uses variables from outside it can't be used as a value");
+        }
+        return expression;
+    }
+    private int countExpressions(DorpExpression expression)
+    {
+        if (expression instanceof StatementList) {
+            int count = 1;
+            for (DorpExpression childExpression : ((StatementList)expression).expressions)
+                count += countExpressions(childExpression);
+            return count;
+        }
+        if (expression instanceof FunctionCall) {
+            FunctionCall functionCall = (FunctionCall)expression;
+            int count = 1 + countExpressions(functionCall.function);
+            for (DorpExpression argumentValue : functionCall.argumentValues)
+                count += countExpressions(argumentValue);
+            return count;
+        }
+        if (expression instanceof InlinedCall) {
+            InlinedCall inlinedCall = (InlinedCall)expression;
+            int count = countExpressions(inlinedCall.body);
+            for (DorpExpression argumentValue : inlinedCall.argumentValues)
+                count += countExpressions(argumentValue);
+            return count;
+        }
+        if (expression instanceof Assignment)
+            return 1 + countExpressions(((Assignment)expression).value);
+        if (expression instanceof BinaryOperation)
+            return 1 + countExpressions(((BinaryOperation)expression).left) + countExpressions(((BinaryOperation)expression).right);
+        if (expression instanceof IfThenElse) {
+            IfThenElse ifThenElse = (IfThenElse)expression;
+            int count = 1 + countExpressions(ifThenElse.condition) + countExpressions(ifThenElse.thenValue);
+            if (ifThenElse.elseValue != null)
+                count += countExpressions(ifThenElse.elseValue);
+            return count;
+        }
+        return 1;
+    }
+
+    /** @return <code>null</code> if it's not an integer literal that fits in 32 bits */
+    private Integer getIntegerValue(DorpExpression expression)
+    {
+        if (!(expression instanceof LiteralValue) || expression.getType() != integerType)
+            return null;
+        try {
+            return Integer.valueOf(((LiteralValue)expression).text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    /** 32-bit two's complement, like the generated code. <code>null</code> for what llvm leaves undefined. */
+    static Integer foldIntegerOperation(NodeType operator, int left, int right)
+    {
+        switch (operator) {
+            case PLUS:
+                return left + right;
+            case MINUS:
+                return left - right;
+            case TIMES:
+                return left * right;
+            case DIVIDED_BY:
+                if (right == 0 || (left == Integer.MIN_VALUE && right == -1))
+                    return null;
+                return left / right;
+            default:
+                throw null;
+        }
+    }
+
+    /** the type for a variable that starts out with a value of the given type */
+    private DorpType makeAssignable(DorpType type)
+    {
+        if (type instanceof TemplateFunctionType) {
+            // need to make a reference so that the variable's later assignments don't
+            // contaminate this value's references, which might be shared by anything.
+            return new TemplateFunctionReference((TemplateFunctionType)type);
+        }
+        return type;
+    }
+
     private void assignTypes(DorpType intoType, DorpType newType)
     {
+        if (intoType == unknownType || newType == unknownType)
+            return;
         if (isPrimitive(intoType)) {
             if (newType != intoType)
                 throw new RuntimeException();
@@ -177,7 +852,7 @@ public class SemanticAnalyzer
             TemplateFunctionType otherTemplate = (TemplateFunctionType)newType;
             if (otherTemplate.getArgumentCount() != reference.getArgumentCount())
                 throw new RuntimeException();
-            reference.references.add(otherTemplate);
+            reference.addReference(otherTemplate);
             return;
         }
         throw new RuntimeException();
@@ -185,6 +860,13 @@ public class SemanticAnalyzer
 
     private DorpType mergeTypes(DorpType... types)
     {
+        ArrayList<DorpType> knownTypes = new ArrayList<>();
+        for (DorpType type : types)
+            if (type != unknownType)
+                knownTypes.add(type);
+        if (knownTypes.isEmpty())
+            return unknownType;
+        types = knownTypes.toArray(new DorpType[knownTypes.size()]);
         DorpType firstType = types[0];
         if (isPrimitive(firstType)) {
             for (int i = 1; i < types.length; i++)
@@ -195,20 +877,25 @@ public class SemanticAnalyzer
         if (firstType instanceof TemplateFunctionType) {
             TemplateFunctionType firstTemplate = (TemplateFunctionType)firstType;
             int argumentCount = firstTemplate.getArgumentCount();
-            TemplateFunctionReference reference = new TemplateFunctionReference(firstTemplate);
+            TemplateFunctionType[] templates = new TemplateFunctionType[types.length];
+            templates[0] = firstTemplate;
             for (int i = 1; i < types.length; i++) {
                 if (!(types[i] instanceof TemplateFunctionType))
                     throw new RuntimeException();
                 TemplateFunctionType otherTemplate = (TemplateFunctionType)types[i];
                 if (otherTemplate.getArgumentCount() != argumentCount)
                     throw new RuntimeException();
-                reference.references.add(otherTemplate);
+                templates[i] = otherTemplate;
             }
-            return reference;
+            return this.types.getTemplateUnion(templates);
         }
         throw new RuntimeException();
     }
 
+    private boolean isIntegerOrUnknown(DorpType type)
+    {
+        return type == integerType || type == unknownType;
+    }
     private boolean isPrimitive(DorpType type)
     {
         return type == voidType || type == booleanType || type == integerType;
@@ -295,13 +982,13 @@ public class SemanticAnalyzer
 
     public class StaticFunctionDefinition extends FunctionPrototype
     {
-        private final SyntaxNode blockContentsNode;
+        public final VariableDefinition[] parameters;
         private final DorpNamespace namespace;
         public DorpExpression expression = null;
-        public StaticFunctionDefinition(StaticFunctionSignature signature, SyntaxNode blockContentsNode, DorpNamespace namespace)
+        public StaticFunctionDefinition(StaticFunctionSignature signature, VariableDefinition[] parameters, DorpNamespace namespace)
         {
             super(signature);
-            this.blockContentsNode = blockContentsNode;
+            this.parameters = parameters;
             this.namespace = namespace;
         }
         public List<VariableDefinition> getLocalVariableDefinitions()
@@ -317,10 +1004,11 @@ public class SemanticAnalyzer
 
     public class StaticFunctionSignature extends DorpType
     {
-        public DorpType returnType;
+        public final DorpType returnType;
         public final String symbolName;
         public final DorpType[] argumentTypes;
-        public StaticFunctionSignature(DorpType returnType, String symbolName, DorpType... argumentTypes)
+        /** see {@link TypeInterner#getFunctionSignature(DorpType, String, DorpType...)} */
+        private StaticFunctionSignature(DorpType returnType, String symbolName, DorpType... argumentTypes)
         {
             super(null);
             this.returnType = Main.nullCheck(returnType);
@@ -342,28 +1030,86 @@ public class SemanticAnalyzer
         }
         public abstract int getArgumentCount();
         public abstract List<TemplateFunctionInstantiation> instantiate(DorpType[] argumentTypes);
+        /** @return the free variables a closure of this type has a record of at runtime, or <code>null</code> if it doesn't need one */
+        public abstract List<VariableDefinition> getEnvironment();
     }
 
+    /** counts every change to any {@link TemplateFunctionReference}, so they know when to collect their definitions again */
+    private int templateReferencesVersion = 0;
+
     public class TemplateFunctionReference extends TemplateFunctionType
     {
-        public final ArrayList<TemplateFunctionType> references = new ArrayList<>();
+        /** other references or definitions. variables keep adding to these as they get assigned. */
+        private final LinkedHashSet<TemplateFunctionType> references = new LinkedHashSet<>();
+        private final int argumentCount;
+        private List<TemplateFunctionDefinition> definitions = null;
+        private int definitionsVersion;
         public TemplateFunctionReference(TemplateFunctionType firstReference)
         {
             references.add(firstReference);
+            argumentCount = firstReference.getArgumentCount();
+        }
+        public void addReference(TemplateFunctionType reference)
+        {
+            if (reference != this && references.add(reference))
+                templateReferencesVersion++;
         }
         @Override
         public int getArgumentCount()
         {
-            return references.get(0).getArgumentCount();
+            return argumentCount;
         }
         @Override
         public List<TemplateFunctionInstantiation> instantiate(DorpType[] argumentTypes)
         {
             ArrayList<TemplateFunctionInstantiation> result = new ArrayList<>();
-            for (TemplateFunctionType reference : references)
-                result.addAll(reference.instantiate(argumentTypes));
+            for (TemplateFunctionDefinition definition : getDefinitions())
+                result.addAll(definition.instantiate(argumentTypes));
             return result;
         }
+        /**
+         * every definition this could be, each one once, even if references refer to each other in circles.
+         * synchronized because the code generator asks from several threads.
+         */
+        public synchronized List<TemplateFunctionDefinition> getDefinitions()
+        {
+            if (definitions != null && definitionsVersion == templateReferencesVersion)
+                return definitions;
+            LinkedHashSet<TemplateFunctionDefinition> result = new LinkedHashSet<>();
+            HashSet<TemplateFunctionReference> visited = new HashSet<>();
+            // depth first in order, without recursion, because chains of variables can get long
+            ArrayDeque<TemplateFunctionType> stack = new ArrayDeque<>();
+            stack.push(this);
+            while (!stack.isEmpty()) {
+                TemplateFunctionType type = stack.pop();
+                if (type instanceof TemplateFunctionDefinition) {
+                    result.add((TemplateFunctionDefinition)type);
+                    continue;
+                }
+                TemplateFunctionReference reference = (TemplateFunctionReference)type;
+                if (!visited.add(reference))
+                    continue;
+                TemplateFunctionType[] children = reference.references.toArray(new TemplateFunctionType[reference.references.size()]);
+                for (int i = children.length - 1; i >= 0; i--)
+                    stack.push(children[i]);
+            }
+            definitions = new ArrayList<>(result);
+            definitionsVersion = templateReferencesVersion;
+            return definitions;
+        }
+        @Override
+        public List<VariableDefinition> getEnvironment()
+        {
+            List<TemplateFunctionDefinition> definitions = getDefinitions();
+            List<VariableDefinition> environment = definitions.get(0).getEnvironment();
+            for (int i = 1; i < definitions.size(); i++) {
+                if (definitions.get(i).getEnvironment() != environment) {
+                    // the value would need a different record layout depending on which closure it is
+                    throw new RuntimeException("a variable can't hold closures that capture different variables");
+                }
+            }
+            return environment;
+        }
         @Override
         public String toString()
         {
@@ -374,10 +1120,18 @@ public class SemanticAnalyzer
     public class TemplateFunctionDefinition extends TemplateFunctionType
     {
         private final String[] argumentNames;
-        private final SyntaxNode blockContentsNode;
+        private final int blockContentsNode;
         private final DorpNamespace parentNamespace;
-        private final ArrayList<TemplateFunctionInstantiation> instantiations = new ArrayList<>();
-        public TemplateFunctionDefinition(String[] argumentNames, SyntaxNode blockContentsNode, DorpNamespace parentNamespace)
+        /**
+         * keyed by argument types, which are compared by identity.
+         * a reference type can get more definitions after it's been a key, so see {@link TemplateFunctionInstantiation#isStale()}.
+         */
+        private final HashMap<List<DorpType>, TemplateFunctionInstantiation> instantiations = new HashMap<>();
+        /** the variables from outside that any instantiation uses, including from closures inside it */
+        private final LinkedHashSet<VariableDefinition> freeVariables = new LinkedHashSet<>();
+        /** see {@link SemanticAnalyzer#findEnvironments()} */
+        private List<VariableDefinition> environment = null;
+        public TemplateFunctionDefinition(String[] argumentNames, int blockContentsNode, DorpNamespace parentNamespace)
         {
             this.argumentNames = argumentNames;
             this.blockContentsNode = blockContentsNode;
@@ -386,8 +1140,12 @@ public class SemanticAnalyzer
         @Override
         public List<TemplateFunctionInstantiation> instantiate(DorpType[] argumentTypes)
         {
-            TemplateFunctionInstantiation instantiation = new TemplateFunctionInstantiation(this, argumentTypes);
-            instantiations.add(instantiation);
+            List<DorpType> key = Arrays.asList(argumentTypes);
+            TemplateFunctionInstantiation instantiation = instantiations.get(key);
+            if (instantiation == null) {
+                instantiation = new TemplateFunctionInstantiation(this, argumentTypes);
+                instantiations.put(key, instantiation);
+            }
             return Arrays.asList(instantiation);
         }
         @Override
@@ -396,6 +1154,11 @@ public class SemanticAnalyzer
             return argumentNames.length;
         }
         @Override
+        public List<VariableDefinition> getEnvironment()
+        {
+            return environment;
+        }
+        @Override
         public String toString()
         {
             StringBuilder result = new StringBuilder();
@@ -412,6 +1175,25 @@ public class SemanticAnalyzer
         public final TemplateFunctionDefinition templateDefinition;
         public final DorpType[] argumentTypes;
         public DorpType returnType;
+        /** <code>null</code> until the body has been analyzed for these argument types */
+        public DorpExpression expression = null;
+        private DorpNamespace namespace;
+        private VariableDefinition[] parameters;
+        /** see {@link SemanticAnalyzer#getFoldedBody(TemplateFunctionInstantiation)} */
+        private DorpExpression foldedExpression = null;
+        /** made the first time something can't inline this */
+        private StaticFunctionDefinition function = null;
+        private boolean isBeingAnalyzed = false;
+        /** whether it calls itself, maybe through other functions, which means it can't be inlined */
+        private boolean isRecursive = false;
+        /** whether a recursive call had to use Unknown for the return type */
+        private boolean needsAnotherPass = false;
+        /**
+         * the references that calls in the body went to, including in the bodies it calls,
+         * with how many definitions they had when the body was done.
+         * references only ever get more definitions, and then the body needs to instantiate those too.
+         */
+        private final HashMap<TemplateFunctionReference, Integer> dispatchedReferences = new HashMap<>();
         public final String symbolName;
         public TemplateFunctionInstantiation(TemplateFunctionDefinition templateDefinition, DorpType[] argumentTypes)
         {
@@ -419,6 +1201,13 @@ public class SemanticAnalyzer
             this.argumentTypes = argumentTypes;
             this.symbolName = generateBlockName();
         }
+        public boolean isStale()
+        {
+            for (Map.Entry<TemplateFunctionReference, Integer> entry : dispatchedReferences.entrySet())
+                if (entry.getKey().getDefinitions().size() != entry.getValue())
+                    return true;
+            return false;
+        }
         @Override
         public String toString()
         {
@@ -426,6 +1215,62 @@ public class SemanticAnalyzer
         }
     }
 
+    public class BinaryOperation extends DorpExpression
+    {
+        /** PLUS, MINUS, TIMES, or DIVIDED_BY */
+        public final NodeType operator;
+        public final DorpExpression left;
+        public final DorpExpression right;
+        public BinaryOperation(NodeType operator, DorpExpression left, DorpExpression right)
+        {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+        @Override
+        public DorpType getType()
+        {
+            return integerType;
+        }
+    }
+
+    /** a call to a template instantiation where the body has been copied in */
+    public class InlinedCall extends DorpExpression
+    {
+        /** the closure, which is only evaluated for its environment */
+        public final DorpExpression function;
+        public final VariableDefinition[] parameters;
+        public final DorpExpression[] argumentValues;
+        public final DorpExpression body;
+        /** the parameters and everything else in the instantiation's namespace */
+        public final Collection<VariableDefinition> localVariables;
+        /** the free variables in the closure's record, or <code>null</code> */
+        public final List<VariableDefinition> environment;
+        public InlinedCall(DorpExpression function, TemplateFunctionInstantiation instantiation, DorpExpression[] argumentValues, DorpExpression body)
+        {
+            this(function, instantiation.parameters, argumentValues, body, instantiation.namespace.names.values(), instantiation.templateDefinition.getEnvironment());
+        }
+        /** the same call with some of its parts replaced */
+        public InlinedCall(InlinedCall inlinedCall, DorpExpression function, DorpExpression[] argumentValues, DorpExpression body)
+        {
+            this(function, inlinedCall.parameters, argumentValues, body, inlinedCall.localVariables, inlinedCall.environment);
+        }
+        private InlinedCall(DorpExpression function, VariableDefinition[] parameters, DorpExpression[] argumentValues, DorpExpression body, Collection<VariableDefinition> localVariables, List<VariableDefinition> environment)
+        {
+            this.function = function;
+            this.parameters = parameters;
+            this.argumentValues = argumentValues;
+            this.body = body;
+            this.localVariables = localVariables;
+            this.environment = environment;
+        }
+        @Override
+        public DorpType getType()
+        {
+            return body.getType();
+        }
+    }
+
     public class FunctionCall extends DorpExpression
     {
         public final DorpExpression function;
@@ -465,6 +1310,8 @@ public class SemanticAnalyzer
     {
         public final DorpNamespace parent;
         private final HashMap<String, VariableDefinition> names = new HashMap<>();
+        /** <code>null</code> for the module */
+        private TemplateFunctionInstantiation instantiation = null;
         public DorpNamespace(DorpNamespace parent)
         {
             this.parent = parent;
@@ -508,6 +1355,13 @@ public class SemanticAnalyzer
         public final String name;
         public DorpType type;
         public final DorpNamespace namespace;
+        /** whether it gets assigned after it's defined */
+        private boolean isReassigned = false;
+        /**
+         * whether this lives in a heap cell that escaping closures share, instead of in a register.
+         * see {@link SemanticAnalyzer#findEnvironments()}.
+         */
+        public boolean isCell = false;
         public VariableDefinition(String name, DorpType type, DorpNamespace namespace, DorpExpression constantValue)
         {
             this.name = name;
@@ -527,9 +1381,69 @@ public class SemanticAnalyzer
         }
     }
 
-    private final DorpType voidType = new DorpType("Void");
-    private final DorpType integerType = new DorpType("Integer");
-    private final DorpType booleanType = new DorpType("Boolean");
+    private final TypeInterner types = new TypeInterner();
+    private final DorpType voidType = types.getPrimitiveType("Void");
+    private final DorpType integerType = types.getPrimitiveType("Integer");
+    private final DorpType booleanType = types.getPrimitiveType("Boolean");
+    /** the type of recursive calls before their return type is known. see {@link #analyzeInstantiation(TemplateFunctionInstantiation)}. */
+    private final DorpType unknownType = types.getPrimitiveType("Unknown");
+
+    /**
+     * makes sure there's only one object for each type, so types can be compared with == and used as hash keys.
+     * the interned types are never modified.
+     * the only types that are made any other way are the {@link TemplateFunctionReference}s that variables get,
+     * which are different for each variable anyway.
+     */
+    private class TypeInterner
+    {
+        private final HashMap<String, DorpType> primitiveTypes = new HashMap<>();
+        private final HashMap<List<Object>, StaticFunctionSignature> functionSignatures = new HashMap<>();
+        private final HashMap<List<TemplateFunctionType>, TemplateFunctionReference> templateUnions = new HashMap<>();
+
+        public DorpType getPrimitiveType(String name)
+        {
+            DorpType result = primitiveTypes.get(name);
+            if (result == null) {
+                result = new DorpType(name);
+                primitiveTypes.put(name, result);
+            }
+            return result;
+        }
+
+        public StaticFunctionSignature getFunctionSignature(DorpType returnType, String symbolName, DorpType... argumentTypes)
+        {
+            ArrayList<Object> key = new ArrayList<>();
+            key.add(returnType);
+            key.add(symbolName);
+            key.addAll(Arrays.asList(argumentTypes));
+            StaticFunctionSignature result = functionSignatures.get(key);
+            if (result == null) {
+                result = new StaticFunctionSignature(returnType, symbolName, argumentTypes);
+                functionSignatures.put(key, result);
+            }
+            return result;
+        }
+
+        /** a type that could be any of the given templates */
+        public TemplateFunctionType getTemplateUnion(TemplateFunctionType... templates)
+        {
+            TemplateFunctionType first = templates[0];
+            boolean allSame = true;
+            for (int i = 1; i < templates.length; i++)
+                allSame &= templates[i] == first;
+            if (allSame && first instanceof TemplateFunctionReference)
+                return first;
+            List<TemplateFunctionType> key = Arrays.asList(templates);
+            TemplateFunctionReference result = templateUnions.get(key);
+            if (result == null) {
+                result = new TemplateFunctionReference(first);
+                for (int i = 1; i < templates.length; i++)
+                    result.addReference(templates[i]);
+                templateUnions.put(key, result);
+            }
+            return result;
+        }
+    }
 
 
     public class DorpType
@@ -0,0 +1,252 @@
+package com.wolfesoftware.dorp;
+
+import java.util.Arrays;
+
+import com.wolfesoftware.dorp.Parser.NodeType;
+
+/**
+ * the output of the {@link Parser}.
+ * a node is an int that indexes into parallel primitive arrays,
+ * and the children of a node are a contiguous range of {@link #childNodes}.
+ * token indexes are indexes into the {@link TokenBuffer}.
+ * <p>
+ * a BLOCK node has its ARGUMENT_LIST (if there is one) and then its BLOCK_CONTENTS as children.
+ */
+public class SyntaxTree
+{
+    private static final NodeType[] nodeTypes = NodeType.values();
+
+    private final TokenBuffer tokens;
+    private int size = 0;
+    private byte[] types;
+    private int[] startTokenIndexes;
+    private int[] endTokenIndexes;
+    private int[] firstChildIndexes;
+    private int[] childCounts;
+    private int childNodesSize = 0;
+    private int[] childNodes;
+    /** nodes that have been built, but not yet claimed by a parent. see {@link #addNode(NodeType, int, int, int)}. */
+    private int pendingSize = 0;
+    private int[] pendingNodes = new int[16];
+    private int root = -1;
+    /** nodes left behind by {@link IncrementalParser} that nothing points to anymore */
+    private int unreachableSize = 0;
+
+    SyntaxTree(TokenBuffer tokens, int capacity)
+    {
+        this.tokens = tokens;
+        capacity = Math.max(capacity, 16);
+        types = new byte[capacity];
+        startTokenIndexes = new int[capacity];
+        endTokenIndexes = new int[capacity];
+        firstChildIndexes = new int[capacity];
+        childCounts = new int[capacity];
+        childNodes = new int[capacity];
+    }
+
+    /** a copy of other for new tokens, with room for extraCapacity more nodes */
+    SyntaxTree(SyntaxTree other, TokenBuffer tokens, int extraCapacity)
+    {
+        this.tokens = tokens;
+        size = other.size;
+        int capacity = size + Math.max(extraCapacity, 16);
+        types = Arrays.copyOf(other.types, capacity);
+        startTokenIndexes = Arrays.copyOf(other.startTokenIndexes, capacity);
+        endTokenIndexes = Arrays.copyOf(other.endTokenIndexes, capacity);
+        firstChildIndexes = Arrays.copyOf(other.firstChildIndexes, capacity);
+        childCounts = Arrays.copyOf(other.childCounts, capacity);
+        childNodesSize = other.childNodesSize;
+        childNodes = Arrays.copyOf(other.childNodes, childNodesSize + Math.max(extraCapacity, 16));
+        root = other.root;
+        unreachableSize = other.unreachableSize;
+    }
+
+    /** the new node's children are the last childCount pending nodes, which are no longer pending after this. */
+    int addNode(NodeType type, int startTokenIndex, int endTokenIndex, int childCount)
+    {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            startTokenIndexes = Arrays.copyOf(startTokenIndexes, capacity);
+            endTokenIndexes = Arrays.copyOf(endTokenIndexes, capacity);
+            firstChildIndexes = Arrays.copyOf(firstChildIndexes, capacity);
+            childCounts = Arrays.copyOf(childCounts, capacity);
+        }
+        if (childNodesSize + childCount > childNodes.length)
+            childNodes = Arrays.copyOf(childNodes, Math.max(childNodes.length * 2, childNodesSize + childCount));
+        pendingSize -= childCount;
+        System.arraycopy(pendingNodes, pendingSize, childNodes, childNodesSize, childCount);
+        types[size] = (byte)type.ordinal();
+        startTokenIndexes[size] = startTokenIndex;
+        endTokenIndexes[size] = endTokenIndex;
+        firstChildIndexes[size] = childNodesSize;
+        childCounts[size] = childCount;
+        childNodesSize += childCount;
+        return size++;
+    }
+    void pushPending(int node)
+    {
+        if (pendingSize == pendingNodes.length)
+            pendingNodes = Arrays.copyOf(pendingNodes, pendingSize * 2);
+        pendingNodes[pendingSize++] = node;
+    }
+    int getPendingSize()
+    {
+        return pendingSize;
+    }
+    /** forget pending nodes from a failed match */
+    void truncatePending(int pendingSize)
+    {
+        this.pendingSize = pendingSize;
+    }
+    void setRoot(int root)
+    {
+        this.root = root;
+    }
+    void setType(int node, NodeType type)
+    {
+        types[node] = (byte)type.ordinal();
+    }
+    void setTokenIndexes(int node, int startTokenIndex, int endTokenIndex)
+    {
+        startTokenIndexes[node] = startTokenIndex;
+        endTokenIndexes[node] = endTokenIndex;
+    }
+    void setChild(int node, int childIndex, int child)
+    {
+        childNodes[firstChildIndexes[node] + childIndex] = child;
+    }
+    int getUnreachableSize()
+    {
+        return unreachableSize;
+    }
+    void setUnreachableSize(int unreachableSize)
+    {
+        this.unreachableSize = unreachableSize;
+    }
+    /** a copy with just the nodes that are reachable from the root */
+    SyntaxTree compact()
+    {
+        SyntaxTree result = new SyntaxTree(tokens, size - unreachableSize);
+        result.setRoot(copyInto(result, root, 0));
+        return result;
+    }
+    private int copyInto(SyntaxTree result, int node, int tokenOffset)
+    {
+        int childCount = childCounts[node];
+        for (int i = 0; i < childCount; i++)
+            result.pushPending(copyInto(result, getChild(node, i), tokenOffset));
+        return result.addNode(getType(node), startTokenIndexes[node] + tokenOffset, endTokenIndexes[node] + tokenOffset, childCount);
+    }
+
+    /**
+     * one tree for several files, whose root has the statements of all of their roots in order.
+     * @param tokens the {@link TokenBuffer#concatenate(TokenBuffer[])} of the trees' tokens
+     */
+    static SyntaxTree concatenate(SyntaxTree[] trees, TokenBuffer tokens)
+    {
+        int capacity = 1;
+        for (SyntaxTree tree : trees)
+            capacity += tree.size - tree.unreachableSize;
+        SyntaxTree result = new SyntaxTree(tokens, capacity);
+        int tokenOffset = 0;
+        int statementCount = 0;
+        for (SyntaxTree tree : trees) {
+            int childCount = tree.childCounts[tree.root];
+            for (int i = 0; i < childCount; i++)
+                result.pushPending(tree.copyInto(result, tree.getChild(tree.root, i), tokenOffset));
+            statementCount += childCount;
+            tokenOffset += tree.tokens.size();
+        }
+        result.setRoot(result.addNode(NodeType.BLOCK_CONTENTS, 0, tokens.size(), statementCount));
+        return result;
+    }
+
+    public TokenBuffer getTokens()
+    {
+        return tokens;
+    }
+    public int getRoot()
+    {
+        return root;
+    }
+    public int size()
+    {
+        return size;
+    }
+    public NodeType getType(int node)
+    {
+        return nodeTypes[types[node]];
+    }
+    public int getStartTokenIndex(int node)
+    {
+        return startTokenIndexes[node];
+    }
+    public int getEndTokenIndex(int node)
+    {
+        return endTokenIndexes[node];
+    }
+    public int getChildCount(int node)
+    {
+        return childCounts[node];
+    }
+    public int getChild(int node, int childIndex)
+    {
+        if (childIndex >= childCounts[node])
+            throw new IndexOutOfBoundsException(String.valueOf(childIndex));
+        return childNodes[firstChildIndexes[node] + childIndex];
+    }
+    public String getSimpleText(int node)
+    {
+        if (startTokenIndexes[node] + 1 == endTokenIndexes[node])
+            return tokens.getText(startTokenIndexes[node]);
+        return null;
+    }
+
+    /** @return the ARGUMENT_LIST node of a BLOCK, or -1 if it doesn't declare any arguments */
+    public int getBlockArgumentDeclarations(int blockNode)
+    {
+        return childCounts[blockNode] == 2 ? getChild(blockNode, 0) : -1;
+    }
+    public int getBlockContents(int blockNode)
+    {
+        return getChild(blockNode, childCounts[blockNode] - 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toString(root);
+    }
+    public String toString(int node)
+    {
+        StringBuilder result = new StringBuilder();
+        writeNodeToBuffer(result, node, 0);
+        return result.toString();
+    }
+    private void writeNodeToBuffer(StringBuilder builder, int node, int indentation)
+    {
+        NodeType type = getType(node);
+        builder.append("[").append(type.name());
+        if (type == NodeType.NUMBER || type == NodeType.IDENTIFIER) {
+            String simpleText = getSimpleText(node);
+            if (simpleText != null) {
+                builder.append(" \"").append(simpleText).append('"');
+            }
+        } else {
+            int childCount = getChildCount(node);
+            for (int i = 0; i < childCount; i++) {
+                builder.append("\n");
+                for (int j = 0; j < indentation + 1; j++)
+                    builder.append("  ");
+                writeNodeToBuffer(builder, getChild(node, i), indentation + 1);
+            }
+            if (childCount > 0) {
+                builder.append("\n");
+                for (int i = 0; i < indentation; i++)
+                    builder.append("  ");
+            }
+        }
+        builder.append("]");
+    }
+}
@@ -0,0 +1,160 @@
+package com.wolfesoftware.dorp;
+
+import java.util.Arrays;
+
+import com.wolfesoftware.dorp.Tokenizer.TokenType;
+
+/**
+ * the output of the {@link Tokenizer}.
+ * tokens are stored as parallel primitive arrays, and the text of a token is only sliced out of the source on demand.
+ */
+public class TokenBuffer
+{
+    private static final TokenType[] tokenTypes = TokenType.values();
+
+    private final String source;
+    private byte[] types;
+    private int[] starts;
+    private int[] ends;
+    private int size = 0;
+    public TokenBuffer(String source)
+    {
+        // a rough guess that's usually close for real code
+        this(source, source.length() / 4);
+    }
+    TokenBuffer(String source, int capacity)
+    {
+        this.source = source;
+        capacity = Math.max(16, capacity);
+        types = new byte[capacity];
+        starts = new int[capacity];
+        ends = new int[capacity];
+    }
+
+    public void add(TokenType type, int start, int end)
+    {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+        }
+        types[size] = (byte)type.ordinal();
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    public String getSource()
+    {
+        return source;
+    }
+    public int size()
+    {
+        return size;
+    }
+    public TokenType getType(int tokenIndex)
+    {
+        return tokenTypes[types[checkIndex(tokenIndex)]];
+    }
+    public int getStart(int tokenIndex)
+    {
+        return starts[checkIndex(tokenIndex)];
+    }
+    public int getEnd(int tokenIndex)
+    {
+        return ends[checkIndex(tokenIndex)];
+    }
+    /** allocates a new string. prefer {@link #textEquals(int, String)} for comparisons. */
+    public String getText(int tokenIndex)
+    {
+        return source.substring(starts[checkIndex(tokenIndex)], ends[tokenIndex]);
+    }
+    public boolean textEquals(int tokenIndex, String text)
+    {
+        int start = starts[checkIndex(tokenIndex)];
+        return ends[tokenIndex] - start == text.length() && source.regionMatches(start, text, 0, text.length());
+    }
+
+    /** @return the index of the first token that starts at or after the offset, or {@link #size()} */
+    public int findToken(int offset)
+    {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (starts[middle] < offset)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * a copy for an edited source where the tokens [from, to) are replaced by the tokens [replacementFrom, replacementTo) of replacement.
+     * the tokens after the replaced ones move by offsetDelta.
+     */
+    TokenBuffer splice(String newSource, int from, int to, TokenBuffer replacement, int replacementFrom, int replacementTo, int offsetDelta)
+    {
+        int replacementSize = replacementTo - replacementFrom;
+        int tailSize = size - to;
+        TokenBuffer result = new TokenBuffer(newSource, from + replacementSize + tailSize);
+        System.arraycopy(types, 0, result.types, 0, from);
+        System.arraycopy(starts, 0, result.starts, 0, from);
+        System.arraycopy(ends, 0, result.ends, 0, from);
+        System.arraycopy(replacement.types, replacementFrom, result.types, from, replacementSize);
+        System.arraycopy(replacement.starts, replacementFrom, result.starts, from, replacementSize);
+        System.arraycopy(replacement.ends, replacementFrom, result.ends, from, replacementSize);
+        int tailStart = from + replacementSize;
+        System.arraycopy(types, to, result.types, tailStart, tailSize);
+        for (int i = 0; i < tailSize; i++) {
+            result.starts[tailStart + i] = starts[to + i] + offsetDelta;
+            result.ends[tailStart + i] = ends[to + i] + offsetDelta;
+        }
+        result.size = tailStart + tailSize;
+        return result;
+    }
+
+    /** all the tokens of several files, one after the other, as if their sources had been one */
+    static TokenBuffer concatenate(TokenBuffer[] buffers)
+    {
+        StringBuilder source = new StringBuilder();
+        int size = 0;
+        for (TokenBuffer buffer : buffers) {
+            source.append(buffer.source);
+            size += buffer.size;
+        }
+        TokenBuffer result = new TokenBuffer(source.toString(), size);
+        int offset = 0;
+        for (TokenBuffer buffer : buffers) {
+            System.arraycopy(buffer.types, 0, result.types, result.size, buffer.size);
+            for (int i = 0; i < buffer.size; i++) {
+                result.starts[result.size + i] = buffer.starts[i] + offset;
+                result.ends[result.size + i] = buffer.ends[i] + offset;
+            }
+            result.size += buffer.size;
+            offset += buffer.source.length();
+        }
+        return result;
+    }
+
+    private int checkIndex(int tokenIndex)
+    {
+        if (tokenIndex >= size)
+            throw new IndexOutOfBoundsException(String.valueOf(tokenIndex));
+        return tokenIndex;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+                result.append(", ");
+            result.append(getType(i).name()).append(" \"").append(getText(i)).append('"');
+        }
+        return result.toString();
+    }
+}
@@ -1,25 +1,11 @@
 package com.wolfesoftware.dorp;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * hand-written scanner. each token is recognized by looking at its first character,
+ * and then the characters are walked exactly once.
+ */
 public class Tokenizer
 {
-    private static class TokenTypeAndPattern
-    {
-        public final TokenType tokenType;
-        public final String pattern;
-        public TokenTypeAndPattern(TokenType tokenType, String pattern)
-        {
-            this.tokenType = tokenType;
-            this.pattern = pattern;
-        }
-    }
-
     public enum TokenType
     {
         IDENTIFIER, //
@@ -31,59 +17,205 @@ public class Tokenizer
         COMMENT, //
         INVALID;
     }
-    private static final List<TokenTypeAndPattern> tokenTypesAndPatterns = Arrays.asList( //
-            new TokenTypeAndPattern(TokenType.IDENTIFIER, "[A-Za-z_][A-Za-z_0-9]*"), //
-            new TokenTypeAndPattern(TokenType.NUMBER, "[0-9]+(?:[.][0-9]+)?(:?[Ee][+-]?[0-9]+)?"), //
-            new TokenTypeAndPattern(TokenType.STRING, "\"(:?\\\\[^\n]|[^\"\\\n])*\""), //
-            new TokenTypeAndPattern(TokenType.OPERATOR, "\\{|\\}|\\(|\\)|\\+|-|\\*|/|=|;|,"), //
-            new TokenTypeAndPattern(TokenType.NEWLINE, "\n"), //
-            new TokenTypeAndPattern(TokenType.SPACE, " +"), //
-            new TokenTypeAndPattern(TokenType.COMMENT, "#[^\n]*"), //
-            new TokenTypeAndPattern(TokenType.INVALID, "."));
-    private static final String grandPattern;
-    static {
-        ArrayList<String> patternGroups = new ArrayList<>();
-        for (TokenTypeAndPattern tokenTypeAndPattern : tokenTypesAndPatterns)
-            patternGroups.add("(?<" + tokenTypeAndPattern.tokenType.name() + ">" + tokenTypeAndPattern.pattern + ")");
-        grandPattern = Main.join(patternGroups, "|");
-    }
-    private static final Pattern grandRegex = Pattern.compile(grandPattern);
-    private static final HashSet<String> keywords = new HashSet<>(Arrays.asList( //
-            "def", "var", //
-            "do", "as", //
-            "if", "then", "else", //
-            "try", "catch", "finally", "throw", "rethrow", //
-            "break", "continue", "return"));
 
     private final String string;
     public Tokenizer(String string)
     {
         this.string = string;
     }
-    public List<Token> tokenize()
+    public TokenBuffer tokenize()
+    {
+        TokenBuffer tokens = new TokenBuffer(string);
+        tokenize(tokens, 0, string.length());
+        return tokens;
+    }
+    /**
+     * tokenizes just part of the string.
+     * no token spans a newline, so the range should start at the beginning of a line and end after a newline or at the end.
+     */
+    TokenBuffer tokenize(int start, int end)
+    {
+        TokenBuffer tokens = new TokenBuffer(string, (end - start) / 4);
+        tokenize(tokens, start, end);
+        return tokens;
+    }
+    private void tokenize(TokenBuffer tokens, int start, int end)
     {
-        ArrayList<Token> tokens = new ArrayList<>();
-        Matcher matcher = grandRegex.matcher(string);
-        int tokenStart = 0;
-        while (tokenStart < string.length()) {
-            matcher.find();
-            String tokenText = matcher.group();
-            int tokenEnd = matcher.end();
-            TokenType tokenType = getTokenType(matcher);
-            if (tokenType == TokenType.IDENTIFIER && keywords.contains(tokenText)) {
+        int length = string.length();
+        int tokenStart = start;
+        while (tokenStart < end) {
+            char c = string.charAt(tokenStart);
+            TokenType tokenType;
+            int tokenEnd;
+            if (isIdentifierStart(c)) {
+                tokenEnd = skipIdentifierPart(tokenStart + 1);
                 // keywords, like "if", are really considered operators
-                tokenType = TokenType.OPERATOR;
+                tokenType = isKeyword(tokenStart, tokenEnd) ? TokenType.OPERATOR : TokenType.IDENTIFIER;
+            } else if (isDigit(c)) {
+                tokenEnd = skipNumber(tokenStart);
+                tokenType = TokenType.NUMBER;
+            } else {
+                switch (c) {
+                    case '{':
+                    case '}':
+                    case '(':
+                    case ')':
+                    case '+':
+                    case '-':
+                    case '*':
+                    case '/':
+                    case '=':
+                    case ';':
+                    case ',':
+                        tokenEnd = tokenStart + 1;
+                        tokenType = TokenType.OPERATOR;
+                        break;
+                    case '\n':
+                        tokenEnd = tokenStart + 1;
+                        tokenType = TokenType.NEWLINE;
+                        break;
+                    case ' ':
+                        tokenEnd = tokenStart + 1;
+                        while (tokenEnd < length && string.charAt(tokenEnd) == ' ')
+                            tokenEnd++;
+                        tokenType = TokenType.SPACE;
+                        break;
+                    case '#':
+                        tokenEnd = skipToEndOfLine(tokenStart + 1);
+                        tokenType = TokenType.COMMENT;
+                        break;
+                    case '"':
+                        tokenEnd = skipString(tokenStart + 1);
+                        if (tokenEnd != -1) {
+                            tokenType = TokenType.STRING;
+                        } else {
+                            // unterminated string. just the quote is invalid.
+                            tokenEnd = tokenStart + 1;
+                            tokenType = TokenType.INVALID;
+                        }
+                        break;
+                    case '\r':
+                    case '\u0085':
+                    case '\u2028':
+                    case '\u2029':
+                        // other line terminators have never been tokens. they're just skipped.
+                        tokenStart++;
+                        continue;
+                    default:
+                        tokenEnd = tokenStart + Character.charCount(string.codePointAt(tokenStart));
+                        tokenType = TokenType.INVALID;
+                        break;
+                }
             }
-            tokens.add(new Token(tokenType, tokenText, tokenStart, tokenEnd));
+            tokens.add(tokenType, tokenStart, tokenEnd);
             tokenStart = tokenEnd;
         }
-        return tokens;
     }
-    private TokenType getTokenType(Matcher matcher)
+
+    private int skipIdentifierPart(int index)
+    {
+        while (index < string.length() && (isIdentifierStart(string.charAt(index)) || isDigit(string.charAt(index))))
+            index++;
+        return index;
+    }
+
+    /** [0-9]+([.][0-9]+)?([Ee][+-]?[0-9]+)? */
+    private int skipNumber(int index)
+    {
+        index = skipDigits(index);
+        if (index + 1 < string.length() && string.charAt(index) == '.' && isDigit(string.charAt(index + 1)))
+            index = skipDigits(index + 1);
+        if (index < string.length() && (string.charAt(index) == 'E' || string.charAt(index) == 'e')) {
+            int exponentIndex = index + 1;
+            if (exponentIndex < string.length() && (string.charAt(exponentIndex) == '+' || string.charAt(exponentIndex) == '-'))
+                exponentIndex++;
+            // without any digits, the "e" is the start of the next token
+            if (exponentIndex < string.length() && isDigit(string.charAt(exponentIndex)))
+                index = skipDigits(exponentIndex);
+        }
+        return index;
+    }
+    private int skipDigits(int index)
+    {
+        while (index < string.length() && isDigit(string.charAt(index)))
+            index++;
+        return index;
+    }
+
+    /** @return the index after the closing quote, or -1 if there isn't one on this line */
+    private int skipString(int index)
+    {
+        // a backslash is also allowed to be a plain character,
+        // so if nothing else closes the string, the last escaped quote does.
+        int lastEscapedQuoteEnd = -1;
+        while (index < string.length()) {
+            switch (string.charAt(index)) {
+                case '"':
+                    return index + 1;
+                case '\n':
+                    return lastEscapedQuoteEnd;
+                case '\\':
+                    if (index + 1 < string.length() && string.charAt(index + 1) != '\n') {
+                        if (string.charAt(index + 1) == '"')
+                            lastEscapedQuoteEnd = index + 2;
+                        index += 2;
+                    } else {
+                        index += 1;
+                    }
+                    break;
+                default:
+                    index += 1;
+                    break;
+            }
+        }
+        return lastEscapedQuoteEnd;
+    }
+
+    private int skipToEndOfLine(int index)
+    {
+        while (index < string.length() && string.charAt(index) != '\n')
+            index++;
+        return index;
+    }
+
+    private static boolean isIdentifierStart(char c)
+    {
+        return ('A' <= c && c <= 'Z') || ('a' <= c && c <= 'z') || c == '_';
+    }
+    private static boolean isDigit(char c)
+    {
+        return '0' <= c && c <= '9';
+    }
+
+    private boolean isKeyword(int start, int end)
+    {
+        switch (string.charAt(start)) {
+            case 'a':
+                return isText(start, end, "as");
+            case 'b':
+                return isText(start, end, "break");
+            case 'c':
+                return isText(start, end, "catch") || isText(start, end, "continue");
+            case 'd':
+                return isText(start, end, "def") || isText(start, end, "do");
+            case 'e':
+                return isText(start, end, "else");
+            case 'f':
+                return isText(start, end, "finally");
+            case 'i':
+                return isText(start, end, "if");
+            case 'r':
+                return isText(start, end, "rethrow") || isText(start, end, "return");
+            case 't':
+                return isText(start, end, "then") || isText(start, end, "throw") || isText(start, end, "try");
+            case 'v':
+                return isText(start, end, "var");
+            default:
+                return false;
+        }
+    }
+    private boolean isText(int start, int end, String text)
     {
-        for (TokenTypeAndPattern tokenTypeAndPattern : tokenTypesAndPatterns)
-            if (matcher.group(tokenTypeAndPattern.tokenType.name()) != null)
-                return tokenTypeAndPattern.tokenType;
-        throw null;
+        return end - start == text.length() && string.regionMatches(start, text, 0, text.length());
     }
 }
@@ -6,6 +6,28 @@ import subprocess
 import re
 import shutil
 
+class CompilerServer:
+  """runs Main --server once and sends it the same arguments the command line would get"""
+  def __init__(self, cmd):
+    self.process = subprocess.Popen(cmd + ["--server"], stdin=subprocess.PIPE, stdout=subprocess.PIPE)
+  def check_call(self, args):
+    self.process.stdin.write(("\t".join(args) + "\n").encode("utf-8"))
+    self.process.stdin.flush()
+    header = self.process.stdout.readline()
+    if not header:
+      sys.exit("ERROR: compiler server died")
+    status, stdout_length, stderr_length = [int(x) for x in header.split()]
+    stdout = self.process.stdout.read(stdout_length)
+    stderr = self.process.stdout.read(stderr_length)
+    sys.stdout.flush()
+    os.write(1, stdout)
+    os.write(2, stderr)
+    if status != 0:
+      raise subprocess.CalledProcessError(status, args)
+  def close(self):
+    self.process.stdin.close()
+    self.process.wait()
+
 def main():
   compile_cmd = ["java", "-cp", "bin", "com.wolfesoftware.dorp.Main"]
   if not os.path.exists("bin"):
@@ -31,11 +53,12 @@ def main():
   if sys.argv[1:]:
     tests = [test for test in tests if test in sys.argv[1:]]
   print("tests: " + " ".join(tests))
+  compiler = CompilerServer(compile_cmd)
   failures = []
   for test in tests:
     test_path = os.path.join("test", test)
     assembly_file = os.path.join(tmp_dir, test + ".ll")
-    subprocess.check_call(compile_cmd + [test_path, "-o", assembly_file])
+    compiler.check_call([test_path, "-o", assembly_file])
 
     object_file = os.path.join(tmp_dir, test + ".s")
     subprocess.check_call([assembler, assembly_file, "-o", object_file])
@@ -53,6 +76,7 @@ def main():
     else:
       sys.stdout.write(".")
     sys.stdout.flush()
+  compiler.close()
   sys.stdout.write("\n")
   if len(failures) > 0:
     sys.exit("\n".join(failures))
@@ -0,0 +1,556 @@
+package com.wolfesoftware.dorp.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.wolfesoftware.dorp.BitcodeWriter;
+import com.wolfesoftware.dorp.CodeGenerator;
+import com.wolfesoftware.dorp.Main;
+import com.wolfesoftware.dorp.Parser;
+import com.wolfesoftware.dorp.SemanticAnalyzer;
+import com.wolfesoftware.dorp.SemanticAnalyzer.CompilationUnit;
+import com.wolfesoftware.dorp.Tokenizer;
+
+/**
+ * compiles programs to both LLVM text and bitcode, decodes the bitcode back into text,
+ * and checks that it says the same thing as the text output.
+ * local names don't make it into bitcode, so both sides call the parameters %a0..., the results %r0...
+ * and the labels bb0... in the order they're defined.
+ * <p>
+ * usage: BitcodeCheck file.dorp...
+ */
+public class BitcodeCheck
+{
+    public static void main(String[] args) throws IOException
+    {
+        int failures = 0;
+        for (String path : args) {
+            CompilationUnit compilationUnit;
+            StringWriter text = new StringWriter();
+            try {
+                compilationUnit = new SemanticAnalyzer(new Parser(new Tokenizer(Main.readPath(path)).tokenize()).parse()).analyze();
+                new CodeGenerator(compilationUnit).generate(text);
+            } catch (RuntimeException e) {
+                // it doesn't compile at all, so there's nothing to compare
+                continue;
+            }
+            String problem;
+            try {
+                ByteArrayOutputStream bitcode = new ByteArrayOutputStream();
+                new BitcodeWriter(compilationUnit).write(bitcode);
+                problem = compare(normalize(text.toString()), new Decoder(bitcode.toByteArray()).decode());
+            } catch (RuntimeException e) {
+                problem = String.valueOf(e);
+            }
+            if (problem == null)
+                continue;
+            System.err.println(path + ": " + problem);
+            failures++;
+        }
+        if (failures != 0) {
+            System.err.println(failures + " failures");
+            System.exit(1);
+        }
+    }
+
+    private static String compare(List<String> expected, List<String> actual)
+    {
+        for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+            String expectedLine = i < expected.size() ? expected.get(i) : "<end>";
+            String actualLine = i < actual.size() ? actual.get(i) : "<end>";
+            if (!expectedLine.equals(actualLine))
+                return "line " + (i + 1) + ": expected \"" + expectedLine + "\" but the bitcode says \"" + actualLine + "\"";
+        }
+        return null;
+    }
+
+    private static final Pattern localNamePattern = Pattern.compile("%([\\w.]+)");
+    private static final Pattern resultPattern = Pattern.compile("^\\s+%([\\w.]+) = ");
+    /** the definitions come first, like in the bitcode's function list */
+    private static List<String> normalize(String text)
+    {
+        ArrayList<String> definitions = new ArrayList<>();
+        ArrayList<String> declarations = new ArrayList<>();
+        ArrayList<String> function = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (line.trim().isEmpty())
+                continue;
+            if (line.startsWith("declare ")) {
+                declarations.add(line);
+                continue;
+            }
+            function.add(line);
+            if (line.equals("}")) {
+                definitions.addAll(renameLocals(function));
+                function.clear();
+            }
+        }
+        if (!function.isEmpty())
+            throw new RuntimeException("function without an end: " + function.get(0));
+        definitions.addAll(declarations);
+        return definitions;
+    }
+    private static List<String> renameLocals(List<String> function)
+    {
+        // phis and branches can refer to things later in the function, so find all the names first
+        HashMap<String, String> names = new HashMap<>();
+        Matcher parameterMatcher = localNamePattern.matcher(function.get(0));
+        for (int i = 0; parameterMatcher.find(); i++)
+            addName(names, parameterMatcher.group(1), "%a" + i);
+        int labelCount = 0;
+        int resultCount = 0;
+        for (String line : function.subList(1, function.size())) {
+            if (line.endsWith(":")) {
+                addName(names, line.substring(0, line.length() - 1), "bb" + labelCount++);
+                continue;
+            }
+            Matcher matcher = resultPattern.matcher(line);
+            if (matcher.find())
+                addName(names, matcher.group(1), "%r" + resultCount++);
+        }
+        ArrayList<String> result = new ArrayList<>();
+        for (String line : function) {
+            if (line.endsWith(":")) {
+                result.add(names.get(line.substring(0, line.length() - 1)) + ":");
+                continue;
+            }
+            Matcher matcher = localNamePattern.matcher(line);
+            StringBuffer renamed = new StringBuffer();
+            while (matcher.find()) {
+                String name = names.get(matcher.group(1));
+                if (name == null)
+                    throw new RuntimeException("never defined: " + matcher.group());
+                // labels are only ever used after a %
+                matcher.appendReplacement(renamed, Matcher.quoteReplacement(name.startsWith("bb") ? "%" + name : name));
+            }
+            matcher.appendTail(renamed);
+            result.add(renamed.toString());
+        }
+        return result;
+    }
+    private static void addName(HashMap<String, String> names, String oldName, String newName)
+    {
+        if (names.put(oldName, newName) != null)
+            throw new RuntimeException("defined twice: %" + oldName);
+    }
+
+    /** reads the subset of the format that {@link BitcodeWriter} writes, which has no abbreviations */
+    private static class Decoder
+    {
+        private static final int MODULE_BLOCK = 8;
+        private static final int CONSTANTS_BLOCK = 11;
+        private static final int FUNCTION_BLOCK = 12;
+        private static final int VALUE_SYMTAB_BLOCK = 14;
+        private static final int TYPE_BLOCK = 17;
+        private static final int MODULE_CODE_VERSION = 1;
+        private static final int MODULE_CODE_FUNCTION = 8;
+
+        private final byte[] data;
+        private long position = 0;
+        private final ArrayList<Record> types = new ArrayList<>();
+        public Decoder(byte[] data)
+        {
+            this.data = data;
+        }
+
+        public List<String> decode()
+        {
+            if (data.length % 4 != 0 || read(32) != 0xdec04342L)
+                throw new RuntimeException("not bitcode");
+            List<Record> top = readBlock(2, true);
+            if (top.size() != 1 || top.get(0).code != MODULE_BLOCK)
+                throw new RuntimeException("expected one module block");
+
+            ArrayList<Record> functions = new ArrayList<>();
+            ArrayList<List<Record>> bodies = new ArrayList<>();
+            HashMap<Long, String> names = new HashMap<>();
+            for (Record record : top.get(0).children) {
+                if (record.children == null) {
+                    if (record.code == MODULE_CODE_FUNCTION)
+                        functions.add(record);
+                    else if (record.code != MODULE_CODE_VERSION)
+                        throw new RuntimeException("module record " + record.code);
+                } else if (record.code == TYPE_BLOCK) {
+                    for (Record type : record.children)
+                        if (type.code != 1)
+                            types.add(type);
+                } else if (record.code == FUNCTION_BLOCK) {
+                    bodies.add(record.children);
+                } else if (record.code == VALUE_SYMTAB_BLOCK) {
+                    for (Record entry : record.children) {
+                        StringBuilder name = new StringBuilder();
+                        for (int i = 1; i < entry.operands.length; i++)
+                            name.append((char)entry.operands[i]);
+                        names.put(entry.operands[0], name.toString());
+                    }
+                } else {
+                    throw new RuntimeException("module block " + record.code);
+                }
+            }
+
+            ArrayList<Value> globals = new ArrayList<>();
+            for (int i = 0; i < functions.size(); i++)
+                globals.add(new Value(functions.get(i).operands[0], "@" + names.get((long)i)));
+            ArrayList<String> result = new ArrayList<>();
+            ArrayList<String> declarations = new ArrayList<>();
+            int bodyIndex = 0;
+            for (int i = 0; i < functions.size(); i++) {
+                Record function = functions.get(i);
+                long[] signature = types.get((int)pointee(function.operands[0])).operands;
+                if (function.operands[2] != 0) {
+                    StringBuilder declaration = new StringBuilder("declare " + typeName(signature[1]) + " " + globals.get(i).name + "(");
+                    for (int j = 2; j < signature.length; j++)
+                        declaration.append(j == 2 ? "" : ", ").append(typeName(signature[j]));
+                    declarations.add(declaration.append(")").toString());
+                    continue;
+                }
+                StringBuilder header = new StringBuilder("define " + typeName(signature[1]) + " " + globals.get(i).name + "(");
+                ArrayList<Value> values = new ArrayList<>(globals);
+                for (int j = 2; j < signature.length; j++) {
+                    values.add(new Value(signature[j], "%a" + (j - 2)));
+                    header.append(j == 2 ? "" : ", ").append(typeName(signature[j])).append(" %a").append(j - 2);
+                }
+                result.add(header.append(") {").toString());
+                decodeBody(bodies.get(bodyIndex++), values, result);
+                result.add("}");
+            }
+            if (bodyIndex != bodies.size())
+                throw new RuntimeException("more function blocks than definitions");
+            result.addAll(declarations);
+            return result;
+        }
+
+        private void decodeBody(List<Record> body, ArrayList<Value> values, ArrayList<String> result)
+        {
+            long blockCount = -1;
+            ArrayList<Record> instructions = new ArrayList<>();
+            for (Record record : body) {
+                if (record.children == null) {
+                    if (record.code == 1)
+                        blockCount = record.operands[0];
+                    else
+                        instructions.add(record);
+                    continue;
+                }
+                if (record.code != CONSTANTS_BLOCK)
+                    throw new RuntimeException("function block " + record.code);
+                long type = -1;
+                for (Record constant : record.children) {
+                    if (constant.code == 1) {
+                        type = constant.operands[0];
+                    } else if (constant.code == 2) {
+                        values.add(new Value(type, "null"));
+                    } else if (constant.code == 4) {
+                        long value = decodeSigned(constant.operands[0]);
+                        values.add(new Value(type, String.valueOf(types.get((int)type).operands[0] == 1 ? value & 1 : value)));
+                    } else {
+                        throw new RuntimeException("constant " + constant.code);
+                    }
+                }
+            }
+
+            int firstResult = values.size();
+            int blockIndex = 0;
+            result.add("bb0:");
+            for (int i = 0; i < instructions.size(); i++) {
+                Record instruction = instructions.get(i);
+                Operands operands = new Operands(instruction.operands, values, firstResult);
+                long resultType = -1;
+                String text;
+                switch (instruction.code) {
+                    case 2: {
+                        Value left = operands.nextWithType();
+                        Value right = operands.next();
+                        String[] operators = { "add", "sub", "mul", "udiv", "sdiv" };
+                        text = operators[(int)operands.nextLiteral()] + " " + typeName(left.type) + " " + left.name + ", " + right.name;
+                        resultType = left.type;
+                        break;
+                    }
+                    case 3: {
+                        Value value = operands.nextWithType();
+                        resultType = operands.nextLiteral();
+                        long opcode = operands.nextLiteral();
+                        String cast = opcode == 9 ? "ptrtoint" : opcode == 11 ? "bitcast" : null;
+                        if (cast == null)
+                            throw new RuntimeException("cast " + opcode);
+                        text = cast + " " + typeName(value.type) + " " + value.name + " to " + typeName(resultType);
+                        break;
+                    }
+                    case 4: {
+                        StringBuilder gep = new StringBuilder("getelementptr ");
+                        Value pointer = operands.nextWithType();
+                        gep.append(typeName(pointer.type)).append(" ").append(pointer.name);
+                        long type = pointee(pointer.type);
+                        for (int j = 0; operands.hasNext(); j++) {
+                            Value index = operands.nextWithType();
+                            gep.append(", ").append(typeName(index.type)).append(" ").append(index.name);
+                            // the first index steps over whole records, and the rest go into them
+                            if (j > 0)
+                                type = types.get((int)type).operands[1 + Integer.parseInt(index.name)];
+                        }
+                        resultType = pointerTo(type);
+                        text = gep.toString();
+                        break;
+                    }
+                    case 10:
+                        if (!operands.hasNext()) {
+                            text = "ret void";
+                        } else {
+                            Value value = operands.nextWithType();
+                            text = "ret " + typeName(value.type) + " " + value.name;
+                        }
+                        break;
+                    case 11:
+                        if (instruction.operands.length == 1) {
+                            text = "br label %bb" + operands.nextLiteral();
+                        } else {
+                            long trueBlock = operands.nextLiteral();
+                            long falseBlock = operands.nextLiteral();
+                            text = "br i1 " + operands.next().name + ", label %bb" + trueBlock + ", label %bb" + falseBlock;
+                        }
+                        break;
+                    case 16: {
+                        resultType = operands.nextLiteral();
+                        StringBuilder phi = new StringBuilder("phi " + typeName(resultType) + " ");
+                        for (int j = 0; operands.hasNext(); j++) {
+                            String value = operands.nextSigned().name;
+                            phi.append(j == 0 ? "" : ", ").append("[ ").append(value).append(", %bb").append(operands.nextLiteral()).append(" ]");
+                        }
+                        text = phi.toString();
+                        break;
+                    }
+                    case 20: {
+                        Value pointer = operands.nextWithType();
+                        operands.expectLiterals(0, 0);
+                        resultType = pointee(pointer.type);
+                        text = "load " + typeName(pointer.type) + " " + pointer.name;
+                        break;
+                    }
+                    case 24: {
+                        Value pointer = operands.nextWithType();
+                        Value value = operands.next();
+                        operands.expectLiterals(0, 0);
+                        text = "store " + typeName(pointee(pointer.type)) + " " + value.name + ", " + typeName(pointer.type) + " " + pointer.name;
+                        break;
+                    }
+                    case 34: {
+                        operands.expectLiterals(0);
+                        long flags = operands.nextLiteral();
+                        if ((flags >> 1) != 0)
+                            throw new RuntimeException("calling convention " + (flags >> 1));
+                        Value function = operands.nextWithType();
+                        long[] signature = types.get((int)pointee(function.type)).operands;
+                        StringBuilder call = new StringBuilder((flags & 1) != 0 ? "tail call " : "call ");
+                        call.append(typeName(signature[1])).append(" ").append(function.name).append("(");
+                        for (int j = 2; j < signature.length; j++)
+                            call.append(j == 2 ? "" : ", ").append(typeName(signature[j])).append(" ").append(operands.next().name);
+                        if (types.get((int)signature[1]).code != 2)
+                            resultType = signature[1];
+                        text = call.append(")").toString();
+                        break;
+                    }
+                    default:
+                        throw new RuntimeException("instruction " + instruction.code);
+                }
+                if (operands.hasNext())
+                    throw new RuntimeException("extra operands for instruction " + instruction.code);
+                if (resultType != -1) {
+                    String name = "%r" + (values.size() - firstResult);
+                    values.add(new Value(resultType, name));
+                    text = name + " = " + text;
+                }
+                result.add("  " + text);
+                if ((instruction.code == 10 || instruction.code == 11) && i + 1 < instructions.size())
+                    result.add("bb" + ++blockIndex + ":");
+            }
+            if (blockIndex + 1 != blockCount)
+                throw new RuntimeException("declared " + blockCount + " blocks but found " + (blockIndex + 1));
+        }
+
+        private String typeName(long id)
+        {
+            Record type = types.get((int)id);
+            long[] operands = type.operands;
+            switch (type.code) {
+                case 2:
+                    return "void";
+                case 7:
+                    return "i" + operands[0];
+                case 8:
+                    return typeName(operands[0]) + "*";
+                case 18:
+                case 21: {
+                    // the first operand is packed or vararg, which are always 0
+                    StringBuilder result = new StringBuilder();
+                    int start = type.code == 21 ? 2 : 1;
+                    for (int i = start; i < operands.length; i++)
+                        result.append(i == start ? "" : ", ").append(typeName(operands[i]));
+                    if (type.code == 18)
+                        return "{ " + result + " }";
+                    return typeName(operands[1]) + "(" + result + ")";
+                }
+                default:
+                    throw new RuntimeException("type " + type.code);
+            }
+        }
+        private long pointee(long pointerType)
+        {
+            Record type = types.get((int)pointerType);
+            if (type.code != 8)
+                throw new RuntimeException("not a pointer: " + typeName(pointerType));
+            return type.operands[0];
+        }
+        private long pointerTo(long type)
+        {
+            for (int i = 0; i < types.size(); i++)
+                if (types.get(i).code == 8 && types.get(i).operands[0] == type)
+                    return i;
+            throw new RuntimeException("no pointer type to " + typeName(type));
+        }
+
+        private List<Record> readBlock(int abbreviationWidth, boolean isTop)
+        {
+            ArrayList<Record> records = new ArrayList<>();
+            while (!(isTop && position == data.length * 8L)) {
+                long abbreviation = read(abbreviationWidth);
+                if (abbreviation == 0) {
+                    alignToWord();
+                    if (isTop)
+                        throw new RuntimeException("end of a block that was never entered");
+                    return records;
+                }
+                if (abbreviation == 1) {
+                    int blockId = (int)readVbr(8);
+                    int newAbbreviationWidth = (int)readVbr(4);
+                    alignToWord();
+                    long length = read(32);
+                    long start = position;
+                    records.add(new Record(blockId, null, readBlock(newAbbreviationWidth, false)));
+                    if (position - start != length * 32)
+                        throw new RuntimeException("block " + blockId + " has the wrong length");
+                } else if (abbreviation == 3) {
+                    int code = (int)readVbr(6);
+                    long[] operands = new long[(int)readVbr(6)];
+                    for (int i = 0; i < operands.length; i++)
+                        operands[i] = readVbr(6);
+                    records.add(new Record(code, operands, null));
+                } else {
+                    throw new RuntimeException("abbreviation " + abbreviation);
+                }
+            }
+            return records;
+        }
+        private long read(int width)
+        {
+            if (position + width > data.length * 8L)
+                throw new RuntimeException("past the end");
+            long value = 0;
+            for (int i = 0; i < width; i++, position++)
+                if ((data[(int)(position >> 3)] >> (position & 7) & 1) != 0)
+                    value |= 1L << i;
+            return value;
+        }
+        private long readVbr(int width)
+        {
+            long value = 0;
+            for (int shift = 0;; shift += width - 1) {
+                long chunk = read(width);
+                value |= (chunk & ((1L << (width - 1)) - 1)) << shift;
+                if ((chunk >> (width - 1)) == 0)
+                    return value;
+            }
+        }
+        private void alignToWord()
+        {
+            position = (position + 31) / 32 * 32;
+        }
+    }
+    private static long decodeSigned(long value)
+    {
+        return (value & 1) != 0 ? -(value >>> 1) : value >>> 1;
+    }
+
+    /** a block if children isn't <code>null</code>, where code is the block id */
+    private static class Record
+    {
+        public final int code;
+        public final long[] operands;
+        public final List<Record> children;
+        public Record(int code, long[] operands, List<Record> children)
+        {
+            this.code = code;
+            this.operands = operands;
+            this.children = children;
+        }
+    }
+    private static class Value
+    {
+        public final long type;
+        public final String name;
+        public Value(long type, String name)
+        {
+            this.type = type;
+            this.name = name;
+        }
+    }
+    /** the operands of one instruction, with value ids relative to it */
+    private static class Operands
+    {
+        private final long[] operands;
+        private final ArrayList<Value> values;
+        private final int firstResult;
+        private final int instructionId;
+        private int index = 0;
+        public Operands(long[] operands, ArrayList<Value> values, int firstResult)
+        {
+            this.operands = operands;
+            this.values = values;
+            this.firstResult = firstResult;
+            this.instructionId = values.size();
+        }
+        public boolean hasNext()
+        {
+            return index < operands.length;
+        }
+        public long nextLiteral()
+        {
+            if (!hasNext())
+                throw new RuntimeException("not enough operands");
+            return operands[index++];
+        }
+        public void expectLiterals(long... expected)
+        {
+            for (long value : expected)
+                if (nextLiteral() != value)
+                    throw new RuntimeException("expected " + value + " at operand " + (index - 1));
+        }
+        /** a value that's already been defined, so it has a type */
+        public Value next()
+        {
+            return getValue((int)((instructionId - nextLiteral()) & 0xffffffffL), -1);
+        }
+        /** a value that's followed by its type if it hasn't been defined yet */
+        public Value nextWithType()
+        {
+            int id = (int)((instructionId - nextLiteral()) & 0xffffffffL);
+            return getValue(id, id >= instructionId ? nextLiteral() : -1);
+        }
+        /** the relative id can be negative, for phis that refer forward */
+        public Value nextSigned()
+        {
+            return getValue((int)(instructionId - decodeSigned(nextLiteral())), -1);
+        }
+        private Value getValue(int id, long type)
+        {
+            if (id < values.size())
+                return values.get(id);
+            return new Value(type, "%r" + (id - firstResult));
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.wolfesoftware.dorp.tools;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.wolfesoftware.dorp.IncrementalParser;
+import com.wolfesoftware.dorp.Main;
+import com.wolfesoftware.dorp.Parser;
+import com.wolfesoftware.dorp.SyntaxTree;
+import com.wolfesoftware.dorp.TokenBuffer;
+import com.wolfesoftware.dorp.Tokenizer;
+
+/**
+ * makes edits to source files with an {@link IncrementalParser}
+ * and checks after each one that the tokens and tree are the same as parsing the new source from scratch,
+ * or that they both fail.
+ * the edits are random but the same every time, and each one is undone after it's checked.
+ * <p>
+ * usage: IncrementalParserCheck file.dorp...
+ */
+public class IncrementalParserCheck
+{
+    private static final String[] replacements = {
+        "", "x", "1", "{}", "{x}", "(x)=", "(x)={x}", "do ", "def ", "f(x)=", " + 1", "; ", ";", "(", ")", "{", "}", "\n", "# x\n", "print(1);",
+    };
+    private static final int editsPerFile = 2000;
+
+    /** edits that used to come out different, as source, the text to replace and its replacement */
+    private static final String[][] regressions = {
+        { "var f = {\n    (x)={x};\n};\n", "{x}", "{}" },
+        { "var f = {\n    (x)={x};\n};\n", "{x}", "do {x}" },
+        { "var f = {\n    (x)={x};\n};\n", "{x}", "def {x}" },
+    };
+
+    public static void main(String[] args) throws IOException
+    {
+        int failures = 0;
+        for (String[] regression : regressions) {
+            String source = regression[0];
+            int start = source.indexOf(regression[1]);
+            failures += check("regression", source, start, start + regression[1].length(), regression[2]);
+        }
+        for (String path : args) {
+            String source = Main.readPath(path);
+            Random random = new Random(source.hashCode());
+            for (int i = 0; i < editsPerFile; i++) {
+                int start = random.nextInt(source.length() + 1);
+                int end = Math.min(source.length(), start + random.nextInt(8));
+                failures += check(path, source, start, end, replacements[random.nextInt(replacements.length)]);
+            }
+        }
+        if (failures != 0) {
+            System.err.println(failures + " failures");
+            System.exit(1);
+        }
+    }
+
+    /** @return the number of failures */
+    private static int check(String name, String source, int start, int end, String replacement)
+    {
+        IncrementalParser parser = new IncrementalParser(source);
+        try {
+            parser.parse();
+        } catch (Parser.ParserError e) {
+            // the edit gets parsed from scratch then, so there's nothing to check
+            return 0;
+        }
+        int failures = checkEdit(name, parser, start, end, replacement);
+        // undo it, which should be back to the tree we started with
+        return failures + checkEdit(name, parser, start, start + replacement.length(), source.substring(start, end));
+    }
+    private static int checkEdit(String name, IncrementalParser parser, int start, int end, String replacement)
+    {
+        String oldSource = parser.getTokens().getSource();
+        String newSource = oldSource.substring(0, start) + replacement + oldSource.substring(end);
+        SyntaxTree incremental;
+        try {
+            incremental = parser.edit(start, end, replacement);
+        } catch (Parser.ParserError e) {
+            incremental = null;
+        }
+        TokenBuffer tokens = new Tokenizer(newSource).tokenize();
+        SyntaxTree fresh;
+        try {
+            fresh = new Parser(tokens).parse();
+        } catch (Parser.ParserError e) {
+            fresh = null;
+        }
+        String problem = null;
+        if (!isSameTokens(parser.getTokens(), tokens))
+            problem = "different tokens";
+        else if ((incremental == null) != (fresh == null))
+            problem = fresh == null ? "should have failed" : "shouldn't have failed";
+        else if (fresh != null && !isSameNode(incremental, incremental.getRoot(), fresh, fresh.getRoot()))
+            problem = "different trees:\n" + incremental + "\n" + fresh;
+        if (problem == null)
+            return 0;
+        System.err.println(name + ": replacing " + quote(oldSource.substring(start, end)) + " at " + start + " with " + quote(replacement) + ": " + problem);
+        return 1;
+    }
+
+    private static boolean isSameTokens(TokenBuffer a, TokenBuffer b)
+    {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++)
+            if (a.getType(i) != b.getType(i) || a.getStart(i) != b.getStart(i) || a.getEnd(i) != b.getEnd(i))
+                return false;
+        return true;
+    }
+    private static boolean isSameNode(SyntaxTree a, int aNode, SyntaxTree b, int bNode)
+    {
+        if (a.getType(aNode) != b.getType(bNode))
+            return false;
+        if (a.getStartTokenIndex(aNode) != b.getStartTokenIndex(bNode) || a.getEndTokenIndex(aNode) != b.getEndTokenIndex(bNode))
+            return false;
+        if (a.getChildCount(aNode) != b.getChildCount(bNode))
+            return false;
+        for (int i = 0; i < a.getChildCount(aNode); i++)
+            if (!isSameNode(a, a.getChild(aNode, i), b, b.getChild(bNode, i)))
+                return false;
+        return true;
+    }
+
+    private static String quote(String text)
+    {
+        return "\"" + text.replace("\\", "\\\\").replace("\n", "\\n").replace("\"", "\\\"") + "\"";
+    }
+}
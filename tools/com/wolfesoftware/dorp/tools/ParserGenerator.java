@@ -0,0 +1,565 @@
+package com.wolfesoftware.dorp.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * reads a grammar spec and writes one recursive-descent parse method per rule
+ * into the generated section of Parser.java. see dorp.grammar for the spec syntax.
+ * <p>
+ * usage: ParserGenerator dorp.grammar Parser.java
+ */
+public class ParserGenerator
+{
+    private static final String beginMarker = "    // begin code generated from dorp.grammar by ParserGenerator. don't edit by hand.";
+    private static final String endMarker = "    // end generated code";
+
+    private static abstract class Expression
+    {
+    }
+    private static class OperatorExpression extends Expression
+    {
+        public final String text;
+        public OperatorExpression(String text)
+        {
+            this.text = text;
+        }
+    }
+    private static class TokenExpression extends Expression
+    {
+        public final String tokenType;
+        public TokenExpression(String tokenType)
+        {
+            this.tokenType = tokenType;
+        }
+    }
+    private static class RuleExpression extends Expression
+    {
+        public final String ruleName;
+        public RuleExpression(String ruleName)
+        {
+            this.ruleName = ruleName;
+        }
+    }
+    private static class MethodExpression extends Expression
+    {
+        public final String methodName;
+        public MethodExpression(String methodName)
+        {
+            this.methodName = methodName;
+        }
+    }
+    private static class SequenceExpression extends Expression
+    {
+        public final List<Expression> elements;
+        public SequenceExpression(List<Expression> elements)
+        {
+            this.elements = elements;
+        }
+    }
+    private static class AnyExpression extends Expression
+    {
+        public final List<Expression> alternatives;
+        public AnyExpression(List<Expression> alternatives)
+        {
+            this.alternatives = alternatives;
+        }
+    }
+    private static class MaybeExpression extends Expression
+    {
+        public final Expression expression;
+        public MaybeExpression(Expression expression)
+        {
+            this.expression = expression;
+        }
+    }
+    private static class RepeatExpression extends Expression
+    {
+        public final Expression expression;
+        public RepeatExpression(Expression expression)
+        {
+            this.expression = expression;
+        }
+    }
+    private static class ListExpression extends Expression
+    {
+        public final Expression element;
+        public final String separator;
+        public ListExpression(Expression element, String separator)
+        {
+            this.element = element;
+            this.separator = separator;
+        }
+    }
+
+    private static class Rule
+    {
+        public final String name;
+        public final int index;
+        /** the rule as written, for the doc comment */
+        public final String source;
+        public final Expression expression;
+        /** <code>null</code>, "TYPE", "TYPE(i)", or "method()" */
+        public final String action;
+        public Rule(String name, int index, String source, Expression expression, String action)
+        {
+            this.name = name;
+            this.index = index;
+            this.source = source;
+            this.expression = expression;
+            this.action = action;
+        }
+    }
+
+    /** tokenizes and parses the text of one rule after the "=" */
+    private static class RuleParser
+    {
+        private final String text;
+        private final String where;
+        private int index = 0;
+        public RuleParser(String text, String where)
+        {
+            this.text = text;
+            this.where = where;
+        }
+        public Expression parseExpression()
+        {
+            ArrayList<Expression> alternatives = new ArrayList<>();
+            alternatives.add(parseSequence());
+            while (skip("|"))
+                alternatives.add(parseSequence());
+            if (alternatives.size() == 1)
+                return alternatives.get(0);
+            return new AnyExpression(alternatives);
+        }
+        private Expression parseSequence()
+        {
+            ArrayList<Expression> elements = new ArrayList<>();
+            while (true) {
+                skipSpace();
+                if (index == text.length() || "|),".indexOf(text.charAt(index)) != -1 || text.startsWith("->", index))
+                    break;
+                elements.add(parsePostfix());
+            }
+            if (elements.isEmpty())
+                throw error("expected an expression");
+            if (elements.size() == 1)
+                return elements.get(0);
+            return new SequenceExpression(elements);
+        }
+        private Expression parsePostfix()
+        {
+            Expression expression = parsePrimary();
+            while (true) {
+                if (skip("?"))
+                    expression = new MaybeExpression(expression);
+                else if (skip("*"))
+                    expression = new RepeatExpression(expression);
+                else
+                    return expression;
+            }
+        }
+        private Expression parsePrimary()
+        {
+            skipSpace();
+            if (skip("\""))
+                return new OperatorExpression(parseStringRest());
+            if (skip("<")) {
+                String tokenType = parseWord();
+                expect(">");
+                return new TokenExpression(tokenType);
+            }
+            if (skip("@"))
+                return new MethodExpression(parseWord());
+            if (skip("(")) {
+                Expression expression = parseExpression();
+                expect(")");
+                return expression;
+            }
+            String word = parseWord();
+            if (word.equals("list")) {
+                expect("(");
+                Expression element = parseExpression();
+                expect(",");
+                expect("\"");
+                String separator = parseStringRest();
+                expect(")");
+                return new ListExpression(element, separator);
+            }
+            if (!word.equals(word.toUpperCase()))
+                throw error("rule names are all caps: " + word);
+            return new RuleExpression(word);
+        }
+        /** after "->" */
+        public String parseAction()
+        {
+            String word = parseWord();
+            if (skip("(")) {
+                if (skip(")"))
+                    return word + "()";
+                int start = index;
+                while (index < text.length() && Character.isDigit(text.charAt(index)))
+                    index++;
+                if (start == index)
+                    throw error("expected a child index");
+                String childIndex = text.substring(start, index);
+                expect(")");
+                return word + "(" + childIndex + ")";
+            }
+            return word;
+        }
+        public boolean atEnd()
+        {
+            skipSpace();
+            return index == text.length();
+        }
+        public boolean skip(String expected)
+        {
+            skipSpace();
+            if (!text.startsWith(expected, index))
+                return false;
+            index += expected.length();
+            return true;
+        }
+        private void expect(String expected)
+        {
+            if (!skip(expected))
+                throw error("expected " + expected);
+        }
+        private String parseStringRest()
+        {
+            int end = text.indexOf('"', index);
+            if (end == -1)
+                throw error("unterminated string");
+            String result = text.substring(index, end);
+            index = end + 1;
+            return result;
+        }
+        private String parseWord()
+        {
+            skipSpace();
+            int start = index;
+            while (index < text.length() && (Character.isLetterOrDigit(text.charAt(index)) || text.charAt(index) == '_'))
+                index++;
+            if (start == index)
+                throw error("expected a name");
+            return text.substring(start, index);
+        }
+        private void skipSpace()
+        {
+            while (index < text.length() && Character.isWhitespace(text.charAt(index)))
+                index++;
+        }
+        private RuntimeException error(String message)
+        {
+            return new RuntimeException(where + ": " + message + " at column " + (index + 1) + ": " + text);
+        }
+    }
+
+    private static LinkedHashMap<String, Rule> parseGrammar(String grammar, String path)
+    {
+        // join continuation lines and drop comments
+        ArrayList<String> ruleLines = new ArrayList<>();
+        ArrayList<Integer> lineNumbers = new ArrayList<>();
+        String[] lines = grammar.split("\n", -1);
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.trim().isEmpty() || line.trim().startsWith("#"))
+                continue;
+            if (Character.isWhitespace(line.charAt(0))) {
+                if (ruleLines.isEmpty())
+                    throw new RuntimeException(path + ":" + (i + 1) + ": continuation line without a rule");
+                int last = ruleLines.size() - 1;
+                ruleLines.set(last, ruleLines.get(last) + " " + line.trim());
+            } else {
+                ruleLines.add(line.trim());
+                lineNumbers.add(i + 1);
+            }
+        }
+
+        LinkedHashMap<String, Rule> rules = new LinkedHashMap<>();
+        for (int i = 0; i < ruleLines.size(); i++) {
+            String line = ruleLines.get(i);
+            String where = path + ":" + lineNumbers.get(i);
+            int equalsIndex = line.indexOf('=');
+            if (equalsIndex == -1)
+                throw new RuntimeException(where + ": expected RULE = ...");
+            String name = line.substring(0, equalsIndex).trim();
+            RuleParser parser = new RuleParser(line.substring(equalsIndex + 1), where);
+            Expression expression = parser.parseExpression();
+            String action = null;
+            if (parser.skip("->"))
+                action = parser.parseAction();
+            if (!parser.atEnd())
+                throw parser.error("unexpected text");
+            if (rules.containsKey(name))
+                throw new RuntimeException(where + ": duplicate rule " + name);
+            rules.put(name, new Rule(name, rules.size(), line, expression, action));
+        }
+        for (Rule rule : rules.values())
+            checkReferences(rules, rule.expression, path + ": " + rule.name);
+        return rules;
+    }
+    private static void checkReferences(LinkedHashMap<String, Rule> rules, Expression expression, String where)
+    {
+        if (expression instanceof RuleExpression) {
+            if (!rules.containsKey(((RuleExpression)expression).ruleName))
+                throw new RuntimeException(where + ": undefined rule " + ((RuleExpression)expression).ruleName);
+        } else if (expression instanceof SequenceExpression) {
+            for (Expression element : ((SequenceExpression)expression).elements)
+                checkReferences(rules, element, where);
+        } else if (expression instanceof AnyExpression) {
+            for (Expression alternative : ((AnyExpression)expression).alternatives)
+                checkReferences(rules, alternative, where);
+        } else if (expression instanceof MaybeExpression) {
+            checkReferences(rules, ((MaybeExpression)expression).expression, where);
+        } else if (expression instanceof RepeatExpression) {
+            checkReferences(rules, ((RepeatExpression)expression).expression, where);
+        } else if (expression instanceof ListExpression) {
+            checkReferences(rules, ((ListExpression)expression).element, where);
+        }
+    }
+
+    /** writes the body of one parse method */
+    private static class MethodWriter
+    {
+        private final StringBuilder builder;
+        private int indentation = 2;
+        private int nextId = 0;
+        public MethodWriter(StringBuilder builder)
+        {
+            this.builder = builder;
+        }
+        private void line(String text)
+        {
+            for (int i = 0; i < indentation; i++)
+                builder.append("    ");
+            builder.append(text).append('\n');
+        }
+        private void open(String text)
+        {
+            line(text);
+            indentation++;
+        }
+        private void close(String text)
+        {
+            indentation--;
+            line(text);
+        }
+
+        /**
+         * @param tokenIndex the name of a variable holding the position to match at
+         * @param throwFailure "throwFailure" or "false"
+         * @return the name of the variable that holds the matched node, or -1
+         */
+        public String write(Expression expression, String tokenIndex, String throwFailure)
+        {
+            int id = nextId++;
+            String node = "node" + id;
+            if (expression instanceof OperatorExpression) {
+                line("int " + node + " = matchToken(" + tokenIndex + ", TokenType.OPERATOR, " + quote(((OperatorExpression)expression).text) + ", " + throwFailure + ");");
+            } else if (expression instanceof TokenExpression) {
+                line("int " + node + " = matchToken(" + tokenIndex + ", TokenType." + ((TokenExpression)expression).tokenType + ", null, " + throwFailure + ");");
+            } else if (expression instanceof RuleExpression) {
+                line("int " + node + " = " + methodNameFor(((RuleExpression)expression).ruleName) + "(" + tokenIndex + ", " + throwFailure + ");");
+            } else if (expression instanceof MethodExpression) {
+                line("int " + node + " = " + ((MethodExpression)expression).methodName + "(" + tokenIndex + ", " + throwFailure + ");");
+            } else if (expression instanceof SequenceExpression) {
+                List<Expression> elements = ((SequenceExpression)expression).elements;
+                String label = "sequence" + id;
+                String pendingSize = "pendingSize" + id;
+                String position = "tokenIndex" + id;
+                line("int " + node + " = -1;");
+                open(label + ": {");
+                line("int " + pendingSize + " = tree.getPendingSize();");
+                line("int " + position + " = " + tokenIndex + ";");
+                for (int i = 0; i < elements.size(); i++) {
+                    String child = write(elements.get(i), position, throwFailure);
+                    if (!canFail(elements.get(i))) {
+                        // always matches, even if it's 0 tokens
+                    } else if (i == 0) {
+                        // nothing to clean up yet
+                        line("if (" + child + " == -1)");
+                        line("    break " + label + ";");
+                    } else {
+                        open("if (" + child + " == -1) {");
+                        line("// polite failure of any children is a polite failure of the whole");
+                        line("tree.truncatePending(" + pendingSize + ");");
+                        line("break " + label + ";");
+                        close("}");
+                    }
+                    line("tree.pushPending(" + child + ");");
+                    line(position + " = end(" + child + ");");
+                }
+                line(node + " = tree.addNode(NodeType.PARSER_INTERMEDIATE, " + tokenIndex + ", " + position + ", " + elements.size() + ");");
+                close("}");
+            } else if (expression instanceof AnyExpression) {
+                String label = "any" + id;
+                line("int " + node + ";");
+                open(label + ": {");
+                for (Expression alternative : ((AnyExpression)expression).alternatives) {
+                    String result = write(alternative, tokenIndex, "false");
+                    open("if (" + result + " != -1) {");
+                    line(node + " = " + result + ";");
+                    line("break " + label + ";");
+                    close("}");
+                }
+                if (throwFailure.equals("throwFailure")) {
+                    line("if (throwFailure)");
+                    line("    throw new ParserError(" + tokenIndex + ");");
+                }
+                line(node + " = -1;");
+                close("}");
+            } else if (expression instanceof MaybeExpression) {
+                String result = write(((MaybeExpression)expression).expression, tokenIndex, "false");
+                line("// spans 0 tokens if there's no match");
+                line("int " + node + " = " + result + " != -1 ? " + result + " : makeNode(NodeType.PARSER_INTERMEDIATE, " + tokenIndex + ", " + tokenIndex + ");");
+            } else if (expression instanceof RepeatExpression) {
+                String position = "tokenIndex" + id;
+                String childCount = "childCount" + id;
+                line("int " + position + " = " + tokenIndex + ";");
+                line("int " + childCount + " = 0;");
+                open("while (true) {");
+                String child = write(((RepeatExpression)expression).expression, position, "false");
+                line("if (" + child + " == -1)");
+                line("    break;");
+                line("tree.pushPending(" + child + ");");
+                line(childCount + "++;");
+                line(position + " = end(" + child + ");");
+                close("}");
+                line("int " + node + " = tree.addNode(NodeType.PARSER_INTERMEDIATE, " + tokenIndex + ", " + position + ", " + childCount + ");");
+            } else if (expression instanceof ListExpression) {
+                ListExpression list = (ListExpression)expression;
+                String position = "tokenIndex" + id;
+                String childCount = "childCount" + id;
+                line("int " + position + " = " + tokenIndex + ";");
+                line("int " + childCount + " = 0;");
+                String firstElement = write(list.element, position, "false");
+                open("if (" + firstElement + " != -1) {");
+                line("tree.pushPending(" + firstElement + ");");
+                line(childCount + "++;");
+                line(position + " = end(" + firstElement + ");");
+                open("while (isToken(" + position + ", TokenType.OPERATOR, " + quote(list.separator) + ")) {");
+                line(position + "++;");
+                String element = write(list.element, position, "false");
+                open("if (" + element + " != -1) {");
+                line("tree.pushPending(" + element + ");");
+                line(childCount + "++;");
+                line(position + " = end(" + element + ");");
+                close("}");
+                close("}");
+                close("}");
+                line("int " + node + " = tree.addNode(NodeType.PARSER_INTERMEDIATE, " + tokenIndex + ", " + position + ", " + childCount + ");");
+            } else {
+                throw new RuntimeException(expression.getClass().getName());
+            }
+            return node;
+        }
+
+        public void writeAction(String action, Expression expression, String node)
+        {
+            if (action == null)
+                return;
+            String statement;
+            if (action.endsWith("()")) {
+                statement = node + " = " + action.substring(0, action.length() - 2) + "(" + node + ");";
+            } else if (action.endsWith(")")) {
+                int parenIndex = action.indexOf('(');
+                String type = action.substring(0, parenIndex);
+                String childIndex = action.substring(parenIndex + 1, action.length() - 1);
+                statement = node + " = makeNode(NodeType." + type + ", start(" + node + "), end(" + node + "), child(" + node + ", " + childIndex + "));";
+            } else {
+                statement = "tree.setType(" + node + ", NodeType." + action + ");";
+            }
+            if (canFail(expression)) {
+                line("if (" + node + " != -1)");
+                line("    " + statement);
+            } else {
+                line(statement);
+            }
+        }
+        private boolean canFail(Expression expression)
+        {
+            return !(expression instanceof MaybeExpression || expression instanceof RepeatExpression || expression instanceof ListExpression);
+        }
+    }
+
+    private static String generate(LinkedHashMap<String, Rule> rules)
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(beginMarker).append('\n');
+        builder.append("    private static final int ruleCount = ").append(rules.size()).append(";\n");
+        for (Rule rule : rules.values()) {
+            builder.append('\n');
+            builder.append("    /** ").append(rule.source.replace("*/", "*\\/")).append(" */\n");
+            builder.append("    private int ").append(methodNameFor(rule.name)).append("(int tokenIndex, boolean throwFailure)\n");
+            builder.append("    {\n");
+            builder.append("        int memoKey = tokenIndex * ruleCount + ").append(rule.index).append(";\n");
+            builder.append("        int memoNode = recall(memoKey, tokenIndex, throwFailure);\n");
+            builder.append("        if (memoNode != MemoTable.NOT_MEMOIZED)\n");
+            builder.append("            return memoNode;\n");
+            MethodWriter writer = new MethodWriter(builder);
+            String node = writer.write(rule.expression, "tokenIndex", "throwFailure");
+            writer.writeAction(rule.action, rule.expression, node);
+            builder.append("        return remember(memoKey, ").append(node).append(");\n");
+            builder.append("    }\n");
+        }
+        builder.append(endMarker).append('\n');
+        return builder.toString();
+    }
+
+    /** BLOCK_CONTENTS becomes parseBlockContents */
+    private static String methodNameFor(String ruleName)
+    {
+        StringBuilder result = new StringBuilder("parse");
+        for (String word : ruleName.split("_"))
+            result.append(word.charAt(0)).append(word.substring(1).toLowerCase());
+        return result.toString();
+    }
+
+    private static String quote(String text)
+    {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length != 2)
+            throw new RuntimeException("usage: ParserGenerator dorp.grammar Parser.java");
+        String grammarPath = args[0];
+        String parserPath = args[1];
+        String generated = generate(parseGrammar(readPath(grammarPath), grammarPath));
+
+        String parserSource = readPath(parserPath);
+        int beginIndex = parserSource.indexOf(beginMarker + "\n");
+        int endIndex = parserSource.indexOf(endMarker + "\n");
+        if (beginIndex == -1 || endIndex < beginIndex)
+            throw new RuntimeException(parserPath + ": can't find the generated section");
+        String newSource = parserSource.substring(0, beginIndex) + generated + parserSource.substring(endIndex + endMarker.length() + 1);
+        if (newSource.equals(parserSource))
+            return;
+        try (OutputStream output = new FileOutputStream(parserPath)) {
+            output.write(newSource.getBytes("UTF-8"));
+        }
+    }
+
+    private static String readPath(String path) throws IOException
+    {
+        try (InputStream input = new FileInputStream(new File(path))) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            byte[] chunk = new byte[0x1000];
+            int length;
+            while ((length = input.read(chunk)) != -1)
+                buffer.write(chunk, 0, length);
+            return new String(buffer.toByteArray(), "UTF-8");
+        }
+    }
+}